@@ -1,8 +1,15 @@
+import com.sun.management.ThreadMXBean;
 import ij.IJ;
 import ij.ImageJ;
+import ij.ImageListener;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
 import ij.WindowManager;
+import ij.gui.GenericDialog;
+import ij.io.FileSaver;
 import ij.plugin.filter.PlugInFilter;
+import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
 import java.awt.BorderLayout;
@@ -10,6 +17,7 @@ import java.awt.Color;
 import java.awt.Cursor;
 import java.awt.Dimension;
 import java.awt.FlowLayout;
+import java.awt.Rectangle;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -17,14 +25,51 @@ import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.awt.image.IndexColorModel;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import javax.swing.ButtonModel;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
@@ -40,21 +85,130 @@ import javax.swing.event.ChangeListener;
 
 public class Color_Reducer implements PlugInFilter {
 
+    /**
+     * default number of histogram containers, one per degree of hue
+     */
     public static final int NUMBER_OF_COLORS = 360;
+
+    /**
+     * system property setting the number of histogram containers, up to MAX_HISTOGRAM_SIZE
+     */
+    public static final String HISTOGRAM_SIZE_PROPERTY = "color_reducer.bins";
+    public static final int MAX_HISTOGRAM_SIZE = 4096;
     public static final int RGB_SAMPLE_MAX = 255;
 
 
-    private int[] histogram;
+    /**
+     * histogram and color intervals of the image, replaced as a whole when the image changes
+     */
+    private volatile int[] histogram;
+    private volatile ColorIntervalIndex intervalIndex;
+
+    /**
+     * palettes of the image per level, replaced together with the color intervals
+     */
+    private volatile PaletteCache palettes;
+
+    /**
+     * analyzes and reduces the image, created by setup()
+     */
+    private ColorReducerEngine engine;
+
+    /**
+     * histogram of the image or its ROI which follows changes of the image, null => histogram is rebuilt
+     */
+    private HueHistogram histogramModel = null;
+
+    /**
+     * brings the histogram up to date after the input image was modified, null => none running
+     */
+    private HistogramUpdateTask histogramUpdate = null;
+
+    /**
+     * the input image was modified again while the histogram was updated
+     */
+    private boolean histogramOutdated = false;
     private static final boolean SHOW_HISTOGRAM = true;
 
     private static final boolean DEBUG_MODE = false;
 
+    /**
+     * true => the stage metrics are written to the ImageJ log when the dialog is closed
+     */
+    private static final boolean LOG_METRICS = DEBUG_MODE || Boolean.getBoolean("color_reducer.metrics");
+
+    /**
+     * system property selecting how the histogram is built: "exact" (default) counts every pixel, "sampled"
+     * counts a growing stratified sample until the dominant color intervals are stable
+     */
+    public static final String HISTOGRAM_MODE_PROPERTY = "color_reducer.histogram";
+
+    /**
+     * pool shared by all parallel calculations, sized by ImageJ's thread setting unless replaced
+     */
+    private static ForkJoinPool workerPool;
+
+    /**
+     * @return number of histogram containers set by the system property, NUMBER_OF_COLORS by default or
+     * if the property is no number in [2, MAX_HISTOGRAM_SIZE]
+     */
+    public static int getConfiguredHistogramSize() {
+        String property = System.getProperty(HISTOGRAM_SIZE_PROPERTY);
+        if (property == null) {
+            return NUMBER_OF_COLORS;
+        }
+        int size;
+        try {
+            size = Integer.parseInt(property.trim());
+        } catch (NumberFormatException e) {
+            IJ.log(HISTOGRAM_SIZE_PROPERTY + "=" + property + " ist keine Zahl, es werden " + NUMBER_OF_COLORS
+                    + " Container verwendet");
+            return NUMBER_OF_COLORS;
+        }
+        if (size < 2 || size > MAX_HISTOGRAM_SIZE) {
+            IJ.log(HISTOGRAM_SIZE_PROPERTY + "=" + size + " liegt nicht zwischen 2 und " + MAX_HISTOGRAM_SIZE
+                    + ", es werden " + NUMBER_OF_COLORS + " Container verwendet");
+            return NUMBER_OF_COLORS;
+        }
+        return size;
+    }
+
+    /**
+     * @return pool shared by all parallel calculations of the plugin
+     */
+    public static synchronized ForkJoinPool getWorkerPool() {
+        if (workerPool == null) {
+            workerPool = new ForkJoinPool(Prefs.getThreads());
+        }
+        return workerPool;
+    }
+
+    /**
+     * Replaces the pool used for all parallel calculations, e.g. to limit the number of cores the plugin occupies.
+     * @param pool ForkJoinPool
+     */
+    public static synchronized void setWorkerPool(ForkJoinPool pool) {
+        workerPool = pool;
+    }
+
     private ImageProcessor imageProcessor = null;
-    private ImageProcessor downsizedImageProcessor = null;
 
-    private ImagePlus result;
+    /**
+     * replaced when the input image changes, calculations keep the pyramid they were started with
+     */
+    private volatile ImagePyramid pyramid = null;
+
+    /**
+     * input image, all of its slices are reduced if it is a stack
+     */
+    private ImagePlus input;
+
+    /**
+     * reduces the whole stack once the dialog is confirmed, null => single image
+     */
+    private StackReducer stackReducer = null;
 
-    private List<ColorInterval> colorIntervals;
+    private ImagePlus result;
 
     private int pixelCount;
 
@@ -63,7 +217,17 @@ public class Color_Reducer implements PlugInFilter {
     public static final int INPUT_HEIGHT_MAX = 1080;
     public static final int PREVIEW_WIDTH = 640;
 
+    /**
+     * true => every calculation of the downsized preview first shows the coarse levels of the image pyramid
+     */
+    private static final boolean PROGRESSIVE_PREVIEW = !"false".equals(System.getProperty("color_reducer.progressive"));
+
     private static final int DIALOG_SLIDER_DEFAULT_VALUE = 2;
+
+    /**
+     * true => saturation and value are quantized as well and the result is an 8 bit indexed image
+     */
+    private volatile boolean paletteMode = false;
     private JProgressBar progressBar;
     private JSlider slider;
     private JFrame sliderFrame;
@@ -71,21 +235,64 @@ public class Color_Reducer implements PlugInFilter {
     private JButton btnOkay;
     private JButton btnCancel;
 
+    private final CalculationScheduler scheduler = new CalculationScheduler();
+
+    /**
+     * results of previous slider positions
+     */
+    private final ReductionCache reductionCache = new ReductionCache(ReductionCache.defaultBudget());
+
+    /**
+     * output images which are no longer displayed, reused by the next calculations
+     */
+    private final ProcessorPool outputPool = new ProcessorPool();
+
+    /**
+     * output image currently displayed, it goes back to the pool once the next result is displayed
+     */
+    private ImageProcessor front = null;
+
+    private final ReductionMetrics metrics = new ReductionMetrics();
+
+    public Color_Reducer() {
+    }
+
     /**
      * Converts an array of rgb samples in the range of [0, 255] to hsv with h in [0, 360], s and v in [0,1]
      * @param rgb integer array of rgb samples
      * @return double array of hsv components
+     * @see Color_Reducer#rgb2hsv(int, double[])
      */
     public double[] rgb2hsv(int[] rgb) {
-        double r = rgb[0] / 255f, g = rgb[1] / 255f, b = rgb[2] / 255f;
-        double max, min, delta;
+        double[] hsv = new double[3];
+        rgb2hsv((rgb[0] << 16) | (rgb[1] << 8) | rgb[2], hsv);
+        return hsv;
+    }
+
+    /**
+     * Converts a packed rgb pixel to hsv with h in [0, 360], s and v in [0,1]. The components are
+     * written into the given buffer, so no arrays are created per pixel.
+     * @param rgb packed rgb pixel
+     * @param hsv buffer of at least three elements receiving the hsv components
+     */
+    public static void rgb2hsv(int rgb, double[] hsv) {
+        double r = ((rgb & 0xff0000) >> 16) / 255f, g = ((rgb & 0xff00) >> 8) / 255f, b = (rgb & 0xff) / 255f;
+        double max, min;
 
         max = r > g ? (r > b ? r : b) : (g > b ? g : b);
         min = r < g ? (r < b ? r : b) : (g < b ? g : b);
 
-        delta = max - min;
+        hsv[0] = hue(r, g, b, max, min);
+        hsv[1] = (max - min) / max;
+        hsv[2] = max;
+    }
 
-        double h = 0, s = delta / max, v = max;
+    /**
+     * Calculates the hue in [0, 360] of rgb samples in the range of [0, 1].
+     */
+    private static double hue(double r, double g, double b, double max, double min) {
+        double delta = max - min;
+        double h = 0;
 
         if (max == min) {
             h = 0;
@@ -100,16 +307,28 @@ public class Color_Reducer implements PlugInFilter {
         h *= 60;
         h += h < 0 ? 360 : 0;
 
-        return new double[] {h, s, v};
+        return h;
     }
 
     /**
      * Converts an array of hsv components to an array of rgb samples. H component should be in the range of [0, 360], S and V in [0, 1].
      * @param  hsv array of hsv components
      * @return rgb array
+     * @see Color_Reducer#hsv2rgb(double, double, double)
      */
     public int[] hsv2rgb(double[] hsv) {
-        double h = hsv[0], s = hsv[1], v = hsv[2];
+        int rgb = hsv2rgb(hsv[0], hsv[1], hsv[2]);
+        return new int[] {(rgb & 0xff0000) >> 16, (rgb & 0xff00) >> 8, rgb & 0xff};
+    }
+
+    /**
+     * Converts hsv components to a packed rgb pixel. H should be in the range of [0, 360], S and V in [0, 1].
+     * @param h hue
+     * @param s saturation
+     * @param v value
+     * @return packed rgb pixel
+     */
+    public static int hsv2rgb(double h, double s, double v) {
         int hi = (int) Math.floor(h / 60);
         double f = h / 60 - hi;
         double p = v * (1 - s);
@@ -140,7 +359,7 @@ public class Color_Reducer implements PlugInFilter {
                 break;
         }
 
-        return new int[] {(int) (r * RGB_SAMPLE_MAX), (int) (g * RGB_SAMPLE_MAX), (int) (b * RGB_SAMPLE_MAX)};
+        return 0xff000000 | ((int) (r * RGB_SAMPLE_MAX) << 16) | ((int) (g * RGB_SAMPLE_MAX) << 8) | (int) (b * RGB_SAMPLE_MAX);
     }
 
     /**
@@ -150,131 +369,64 @@ public class Color_Reducer implements PlugInFilter {
      * @return
      */
     public int histogramIndex(double h, int histogramSize) {
+        return containerOf(h, histogramSize);
+    }
+
+    /**
+     * @param h hue in degrees
+     * @param histogramSize number of histogram containers
+     * @return index of the histogram container of the hue
+     */
+    static int containerOf(double h, int histogramSize) {
         // histogramSize <=> NUMBER_OF_COLORS
         return (int) Math.floor((h / 360.0) * histogramSize);
     }
 
-    public final static int STATE_IS_RISING_EDGE = 0;
-    public final static int STATE_IS_FALLING_EDGE = 1;
-    public final static int STATE_IS_PLATEAU = 2;
-    public final static int STATE_IS_GUESSING = 4;
-
     /**
-     * Analyzes a given histogram and searches for color intervals by using a hill climbing algorithm.
+     * Lookup to find appropiate histogram container for a packed rgb pixel. Gives the same result as
+     * containerOf(rgb2hsv(rgb)[0], histogramSize) without creating any arrays.
+     * @param rgb packed rgb pixel
+     * @param histogramSize
+     * @return index of histogram container
      */
-    public ArrayList<ColorInterval> findColorIntervals(int[] h) {
-        int state = STATE_IS_GUESSING;
-
-        int leftBoundary = 0;
-        int rightBoundary = 0;
-
-        int maxKey = h.length - 1;
-        ArrayList<ColorInterval> returnList = new ArrayList<ColorInterval>();
-
-        for (int i = 1; i < h.length; i++) {
-            int val = h[i];
-            int pre = h[i-1];
-
-            switch (state) {
-                case STATE_IS_GUESSING:
-                    if (val > pre) {
-                        state = STATE_IS_RISING_EDGE;
-                        leftBoundary = i;
-                    }
-
-                    if (val < pre) {
-                        state = STATE_IS_FALLING_EDGE;
-                    }
-
-                    if (val == pre) {
-                        state = STATE_IS_PLATEAU;
-                    }
-                    break;
-                case STATE_IS_FALLING_EDGE:
-                    if (i == maxKey) {
-                        rightBoundary = i;
-                        returnList.add(new ColorInterval(leftBoundary, rightBoundary, histogram));
-                        break;
-                    }
-
-                    if (val > pre) {
-                        state = STATE_IS_RISING_EDGE;
-                        rightBoundary = i;
-                        returnList.add(new ColorInterval(leftBoundary, rightBoundary, histogram));
-
-                        leftBoundary = i;
-                    } else if (val == 0) {
-                        state = STATE_IS_PLATEAU;
-                        rightBoundary = i;
-                        returnList.add(new ColorInterval(leftBoundary, rightBoundary, histogram));
-                    }
-
-                    break;
-                case STATE_IS_RISING_EDGE:
-                    if (val < pre) {
-                        state = STATE_IS_FALLING_EDGE;
-                    }
-
-                    if (i == maxKey) {
-                        rightBoundary = i;
-                        returnList.add(new ColorInterval(leftBoundary, rightBoundary, histogram));
-                    }
-                    break;
-                case STATE_IS_PLATEAU:
-                    if (val > pre) {
-                        state = STATE_IS_RISING_EDGE;
-                        leftBoundary = i;
-                    }
+    public static int hueIndex(int rgb, int histogramSize) {
+        double r = ((rgb & 0xff0000) >> 16) / 255f, g = ((rgb & 0xff00) >> 8) / 255f, b = (rgb & 0xff) / 255f;
+        double max, min;
 
-                    if (val < pre) {
-                        state = STATE_IS_FALLING_EDGE;
-                    }
+        max = r > g ? (r > b ? r : b) : (g > b ? g : b);
+        min = r < g ? (r < b ? r : b) : (g < b ? g : b);
 
-                    if (i == maxKey && val > 0) {
-                        rightBoundary = i;
-                        returnList.add(new ColorInterval(leftBoundary, rightBoundary, histogram));
-                    }
-                    break;
-            }
-        }
+        return containerOf(hue(r, g, b, max, min), histogramSize);
+    }
 
-        if (rightBoundary == maxKey) {
-            int last = returnList.size() - 1;
-            ColorInterval lastInterval = returnList.remove(last);
+    /**
+     * @deprecated moved to ColorReducerEngine
+     */
+    @Deprecated
+    public final static int STATE_IS_RISING_EDGE = ColorReducerEngine.STATE_IS_RISING_EDGE;
+    @Deprecated
+    public final static int STATE_IS_FALLING_EDGE = ColorReducerEngine.STATE_IS_FALLING_EDGE;
+    @Deprecated
+    public final static int STATE_IS_PLATEAU = ColorReducerEngine.STATE_IS_PLATEAU;
+    @Deprecated
+    public final static int STATE_IS_GUESSING = ColorReducerEngine.STATE_IS_GUESSING;
 
-            returnList.get(0).setBegin(lastInterval.getBegin());
-        }
-        return returnList;
+    /**
+     * Analyzes a given histogram and searches for color intervals by using a hill climbing algorithm.
+     * @deprecated use ColorReducerEngine.findColorIntervals()
+     */
+    @Deprecated
+    public ArrayList<ColorInterval> findColorIntervals(int[] h) {
+        return ColorReducerEngine.findColorIntervals(h);
     }
 
     /**
      * Analyzes a given histogram and searches for color intervals by using a hill climbing algorithm.
-     * @deprecated
+     * @deprecated use ColorReducerEngine.getColorIntervals()
      */
+    @Deprecated
     public List<ColorInterval> getColorIntervals(int[] h) {
-        // TODO: merge first and last interval
-        List<ColorInterval> res = new ArrayList<ColorInterval>(h.length);
-        boolean isFallingEdge = false;
-        int leftBound = 0;
-        ColorInterval ci;
-
-        for (int i = 1; i < h.length; i++) {
-            if (h[i - 1] > h[i]) {
-                isFallingEdge = true;
-            }
-
-            if (h[i - 1] < h[i] && isFallingEdge) {
-                isFallingEdge = false;
-                ci = new ColorInterval(leftBound, i - 1, h);
-                res.add(ci);
-                leftBound = i;
-                log(ci.toString());
-            }
-        }
-        res.add(new ColorInterval(leftBound, histogram.length - 1, histogram));
-
-        // res.get(0).merge(ci);
-        return res;
+        return ColorReducerEngine.getColorIntervals(h);
     }
 
     private void renderHistogram(int[] histogram) {
@@ -343,53 +495,73 @@ public class Color_Reducer implements PlugInFilter {
     @Override
     public int setup(String arg, ImagePlus imp) {
 
+        input = imp;
         imageProcessor = imp.getProcessor();
 
-        histogram = new int[NUMBER_OF_COLORS];
         pixelCount = imageProcessor.getPixelCount();
-        result = imp.createImagePlus();
-
-        int imgSize = imp.getProcessor().getHeight() * imp.getProcessor().getWidth();
-
-        if (imgSize >= INPUT_WIDTH_MAX * INPUT_HEIGHT_MAX) {
-            resizeToPreviewSize = true;
-            downsizedImageProcessor = imageProcessor.resize(PREVIEW_WIDTH);
+        ReductionMetrics.Measurement m = metrics.start(ReductionMetrics.SETUP, pixelCount);
+        try {
+            engine = new ColorReducerEngine(HueTable.getInstance(getConfiguredHistogramSize(), getWorkerPool()),
+                    Desaturator.getDefault(), metrics);
+            result = imp.createImagePlus();
+
+            int imgSize = imp.getProcessor().getHeight() * imp.getProcessor().getWidth();
+
+            if (imgSize >= INPUT_WIDTH_MAX * INPUT_HEIGHT_MAX) {
+                resizeToPreviewSize = true;
+                pyramid = new ImagePyramid(imageProcessor, PREVIEW_WIDTH);
+            } else {
+                pyramid = new ImagePyramid(imageProcessor, 0);
+            }
+        } finally {
+            metrics.stop(m);
         }
-
         return DOES_RGB;
     }
 
     @Override
     public void run(ImageProcessor ip) {
-        int width = ip.getWidth(), height = ip.getHeight();
-
-        int[] rgb = new int[3];
-        double[] hsv = new double[3];
+        if (input.getStackSize() > 1 && !showStackDialog()) {
+            return;
+        }
 
-        int index;
+        // downsized images are needed as soon as the dialog shows up
+        ReductionMetrics.Measurement m = metrics.start(ReductionMetrics.SETUP, pixelCount);
+        try {
+            pyramid.prepare(engine.getPool());
+        } finally {
+            metrics.stop(m);
+        }
 
-        // create histogram for hue (hsv)
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                ip.getPixel(x, y, rgb);
-                hsv = rgb2hsv(rgb);
-                index = histogramIndex(hsv[0], histogram.length);
-                histogram[index]++;
+        if (stackReducer != null && stackReducer.hasGlobalHistogram()) {
+            // the preview of the current slice uses the intervals of the whole stack
+            setHistogram(stackReducer.buildGlobalHistogram(null));
+        } else if (!"sampled".equalsIgnoreCase(System.getProperty(HISTOGRAM_MODE_PROPERTY))) {
+            // the intervals are taken from the ROI only, but the whole image is reduced
+            m = metrics.start(ReductionMetrics.HISTOGRAM, pixelCount);
+            try {
+                histogramModel = new HueHistogram(engine.getHueTable(), ip, ip.getRoi(), ip.getMask(), engine.getPool());
+            } finally {
+                metrics.stop(m);
             }
+            setHistogram(histogramModel.getCounts());
+        } else {
+            analyze(ip);
+        }
+
+        if (stackReducer == null || !stackReducer.hasGlobalHistogram()) {
+            ImagePlus.addImageListener(imageListener);
         }
 
-        log(Arrays.toString(histogram));
+        if (DEBUG_MODE) {
+            log(Arrays.toString(histogram));
+        }
 
         if (SHOW_HISTOGRAM) {
             renderHistogram(histogram);
         }
 
-        colorIntervals = getColorIntervals(histogram);
-        // todo: we want to replace getColorIntervals() by findColorIntervals()
-        // ArrayList<ColorInterval> test = findColorIntervals(histogram);
-
-        Collections.sort(colorIntervals);
-        final int colorCount = colorIntervals.size();
+        final int colorCount = getColorCount();
 
         result.setTitle("Ausgabe");
         result.show();
@@ -403,152 +575,432 @@ public class Color_Reducer implements PlugInFilter {
     }
 
     /**
-     * Triggers eventhandling if slider is dragged.
-     * @see Color_Reducer#createAndShowDialog()
+     * Updates the histogram and the preview when the input image is modified.
      */
-    protected void fireSliderChangeEvent() {
-        for (ChangeListener cl : slider.getChangeListeners()) {
-            cl.stateChanged(new ChangeEvent(slider));
+    private final ImageListener imageListener = new ImageListener() {
+        public void imageOpened(ImagePlus imp) {
         }
-    }
-
-     /**
-     * Converts input image into grayscale image. Conversion uses RGB -> HSV conversion and sets hue value to zero,
-     * then converts back to RGB.
-     * @param ImageProcessor ipin ImageProcessor input image data
-     * @return ImageProcessor Grayscale ImageProcessor
-     * @see CalculationTask#done()
-     */
-    public ImageProcessor desaturateColors(ImageProcessor ipin) {
-        int width = ipin.getWidth(), height = ipin.getHeight();
-        ImageProcessor ipout = new ColorProcessor(width, height);
-
-        int[] rgb;
-        double[] hsv;
-
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                rgb = ipin.getPixel(x, y, null);
-                hsv = rgb2hsv(rgb);
 
-                hsv[1] = 0;
+        public void imageClosed(ImagePlus imp) {
+        }
 
-                rgb = hsv2rgb(hsv);
-                ipout.putPixel(x, y, rgb);
+        public void imageUpdated(ImagePlus imp) {
+            if (imp == input) {
+                javax.swing.SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        imageChanged();
+                    }
+                });
             }
         }
+    };
 
-        return ipout;
+    /**
+     * Brings the histogram up to date after the input image was modified. The histogram is updated in
+     * the background; changes arriving in the meantime are taken into account by one more update.
+     * Called on the event dispatch thread.
+     */
+    private void imageChanged() {
+        if (sliderFrame == null || !sliderFrame.isDisplayable()) {
+            return;
+        }
+        if (histogramUpdate != null) {
+            histogramOutdated = true;
+            return;
+        }
+        histogramOutdated = false;
+        histogramUpdate = new HistogramUpdateTask(input.getProcessor());
+        histogramUpdate.execute();
     }
 
     /**
-     * Replaces a color variant by its most similar variant which is already more dominant in the image.
-     * @param ipin ImageProcessor input image
-     * @param colorLevel int Number of dominant color variants after reduction
-     * @see ReductionTask#doInBackground()
-     * @see desaturateColors()
-     * @return
+     * Updates the histogram, its color intervals and the image pyramid of a modified input image. Only the
+     * new histogram and the slider are set on the event dispatch thread.
      */
-    synchronized private ImageProcessor reduceColors(ImageProcessor ipin, int colorLevel) {
-        int width = ipin.getWidth(), height = ipin.getHeight();
-
-        int[] currentPixel = new int[3];
-        double[] hsv;
-        int translatedHue;
-
-        int[] _cache = new int[NUMBER_OF_COLORS];
-        Arrays.fill(_cache, Integer.MIN_VALUE);
-
-        ImageProcessor ipout = ipin.duplicate(); //new ColorProcessor(width, height);
-        //Set<ColorInterval> dominatingColors = Collections.synchronizedSet(new HashSet<ColorInterval>(colorLevel));
-
-        ArrayList<ColorInterval> dominatingColors = new ArrayList<ColorInterval>();
-
-        int lsize = colorIntervals.size();
-        for (ColorInterval i : colorIntervals.subList(lsize - colorLevel, lsize)) {
-            i.setDominant(true);
-            dominatingColors.add(i);
+    private class HistogramUpdateTask extends SwingWorker<Boolean, Void> {
+        private final ImageProcessor ip;
+        private boolean replaced;
+        private int[] counts;
+        private ColorIntervalIndex index;
+        private ImagePyramid levels;
+
+        HistogramUpdateTask(ImageProcessor ip) {
+            this.ip = ip;
         }
 
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                ipin.getPixel(x, y, currentPixel);
-                hsv = rgb2hsv(currentPixel);
-
-                int index = histogramIndex(hsv[0], histogram.length);
-
-                if (_cache[index] == Integer.MIN_VALUE) {
-                    for (ColorInterval ci : colorIntervals) {
-                        if (ci.includes(index)) {
-                            if (!ci.isDominant()) {
-                                int minD = Integer.MAX_VALUE;
-                                ColorInterval minI = null;
-
-                                for (ColorInterval di : dominatingColors) {
-                                    int n = histogram.length;
-                                    int distance = Math.min(Math.abs(index - di.getBegin()), Math.abs(index - di.getEnd()));
-
-                                    if (n - Math.abs(index - di.getBegin()) < distance)
-                                        distance = n - Math.abs(index - di.getBegin());
-
-                                    if (n - Math.abs(index - di.getEnd()) < distance)
-                                        distance = n - Math.abs(index - di.getEnd());
-
-                                    if (minD > distance) {
-                                        minD = distance;
-                                        minI = di;
-                                    }
-                                }
-
-                                if (minI instanceof ColorInterval) {
-                                    // actual color reduction happens here
-                                    translatedHue = minI.getMaxIndex();
-                                    //translatedHue = (index - ci.getBegin()) * minI.getWidth() / ci.getWidth() + minI.getBegin();
-                                    _cache[index] = translatedHue;
-                                }
-                            }
-                        }
-                    }
+        /**
+         * @return true if pixels have changed, index is null if the histogram has not
+         */
+        @Override
+        protected Boolean doInBackground() {
+            if (ip.getWidth() != imageProcessor.getWidth() || ip.getHeight() != imageProcessor.getHeight()) {
+                return false;
+            }
+            replaced = ip.getPixels() != imageProcessor.getPixels();
+
+            if (histogramModel != null) {
+                // edits may change any pixel, e.g. with the brush or "Clear Outside", the changed rows are found by their hashes
+                ReductionMetrics.Measurement m = metrics.start(ReductionMetrics.HISTOGRAM, pixelCount);
+                boolean edited;
+                try {
+                    edited = histogramModel.update(ip);
+                } finally {
+                    metrics.stop(m);
+                }
+                if (!edited && !replaced) {
+                    return false;
                 }
+                counts = histogramModel.getCounts();
+            } else {
+                counts = engine.buildHistogram(ip);
+            }
+            // e.g. a darkened image keeps its intervals, only the pixels are new
+            if (!Arrays.equals(counts, histogram)) {
+                index = engine.indexColorIntervals(counts);
+            }
 
-                hsv[0] = _cache[index] / (double) histogram.length * 360f;
-                ipout.putPixel(x, y, hsv2rgb(hsv));
+            // the downsized images and previous results show the old pixels
+            levels = new ImagePyramid(ip, pixelCount >= INPUT_WIDTH_MAX * INPUT_HEIGHT_MAX ? PREVIEW_WIDTH : 0);
+            levels.prepare(engine.getPool());
+            return true;
+        }
+
+        @Override
+        protected void done() {
+            histogramUpdate = null;
+            try {
+                boolean changed = get();
+                if (replaced) {
+                    imageProcessor = ip;
+                }
+                if (changed && sliderFrame.isDisplayable()) {
+                    // the running calculation shows the old pixels, its results must not enter the cache
+                    scheduler.cancel();
+                    pyramid = levels;
+                    if (index != null) {
+                        setHistogram(counts, index);
+                        slider.setMaximum(getColorCount());
+                    } else {
+                        // the palettes were built from the old pixels
+                        palettes = new PaletteCache(pyramid, intervalIndex);
+                    }
+                    reductionCache.clear();
+                    fireSliderChangeEvent();
+                }
+            } catch (InterruptedException ex) {
 
-                // @todo: show progress
+            } catch (ExecutionException ex) {
+                IJ.handleException(ex.getCause());
             }
-            // reconstitute a list of non-dominant color intervals for renewed reductions
-            for (ColorInterval i : colorIntervals.subList(lsize - colorLevel, lsize)) {
-                i.setDominant(false);
+
+            if (histogramOutdated) {
+                imageChanged();
             }
         }
-        return ipout;
+    }
+
+    /**
+     * Replaces the histogram and its color intervals. Running calculations keep the intervals they were started with.
+     * @param h histogram
+     */
+    private void setHistogram(int[] h) {
+        setHistogram(h, engine.indexColorIntervals(h));
+    }
+
+    /**
+     * @param h histogram
+     * @param index color intervals of the histogram
+     */
+    private void setHistogram(int[] h, ColorIntervalIndex index) {
+        palettes = new PaletteCache(pyramid, index);
+        intervalIndex = index;
+        histogram = h;
+    }
+
+    /**
+     * Asks how the slices of a stack are reduced.
+     * @return false if the dialog was cancelled
+     */
+    private boolean showStackDialog() {
+        // in the order of StackReducer's histogram modes
+        String[] modes = {"global (whole stack)", "per slice", "sequence (similar slices share intervals)"};
+
+        GenericDialog gd = new GenericDialog("Farben reduzieren");
+        gd.addMessage("Stack mit " + input.getStackSize() + " Bildern");
+        gd.addChoice("Histogramm:", modes, modes[0]);
+        gd.addNumericField("Bilder gleichzeitig:", Prefs.getThreads(), 0);
+        gd.addNumericField("Max. Histogramm-Abstand (Sequenz):", StackReducer.SEQUENCE_THRESHOLD_DEFAULT, 2);
+        gd.showDialog();
+
+        if (gd.wasCanceled()) {
+            return false;
+        }
+        int mode = gd.getNextChoiceIndex();
+        int inFlight = Math.max(1, (int) gd.getNextNumber());
+        double threshold = gd.getNextNumber();
+
+        stackReducer = new StackReducer(engine, input.getStack(), mode, threshold, inFlight);
+        return true;
+    }
+
+    /**
+     * Builds the hue histogram of the image and searches its color intervals. Nothing is shown,
+     * so this also works without a display.
+     * @param ip ImageProcessor input image
+     */
+    void analyze(ImageProcessor ip) {
+        setHistogram(engine.buildHistogram(ip));
+    }
+
+    /**
+     * @return number of color intervals found by analyze()
+     */
+    int getColorCount() {
+        return intervalIndex.size();
+    }
+
+    /**
+     * @return color intervals found by analyze()
+     */
+    ColorIntervalIndex getColorIntervalIndex() {
+        return intervalIndex;
+    }
+
+    ColorReducerEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * @return metrics of all stages run by this reducer so far
+     */
+    ReductionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Converts input image into grayscale image.
+     * @param ImageProcessor ipin ImageProcessor input image data
+     * @return ImageProcessor Grayscale ImageProcessor
+     * @see ColorReducerEngine#desaturateColors()
+     */
+    public ImageProcessor desaturateColors(ImageProcessor ipin) {
+        return engine.desaturateColors(ipin);
+    }
+
+    /**
+     * Triggers eventhandling if slider is dragged.
+     * @see Color_Reducer#createAndShowDialog()
+     */
+    protected void fireSliderChangeEvent() {
+        for (ChangeListener cl : slider.getChangeListeners()) {
+            cl.stateChanged(new ChangeEvent(slider));
+        }
     }
 
     /**
      * Base class for calculation threads.
      * @see SwingWorker
      */
-    abstract protected class CalculationTask extends SwingWorker<ImageProcessor, Void> {
+    abstract protected class CalculationTask extends SwingWorker<ImageProcessor, ImageProcessor> implements ProgressMonitor {
+        /**
+         * number of dominant colors, 0 => desaturation
+         */
+        protected final int level;
+
+        /**
+         * color intervals at the time of the request, later changes of the image are calculated by a new task
+         */
+        protected final ColorIntervalIndex index = intervalIndex;
+
+        /**
+         * downsized input images and generation of the cache at the time of the request
+         */
+        private final ImagePyramid pyramid = Color_Reducer.this.pyramid;
+        private final int cacheGeneration = reductionCache.getGeneration();
+
+        /**
+         * true while the final resolution is calculated, coarse levels do not move the progress bar
+         */
+        private volatile boolean reportProgress = false;
+
+        /**
+         * output image of the final resolution, handed back to the pool if it is not displayed once the
+         * background thread has stopped
+         */
+        private volatile ImageProcessor back = null;
+
+        /**
+         * set by whoever comes first: doInBackground() when it starts, or done() when the task was
+         * cancelled before it started
+         */
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        /**
+         * done() has been called and doInBackground() has returned or will never run, only used on the
+         * event dispatch thread
+         */
+        private boolean doneCalled = false;
+        private boolean backgroundFinished = false;
+        private boolean shown = false;
+
+        /**
+         * @param level number of dominant colors, 0 => desaturation
+         */
+        public CalculationTask(int level) {
+            this.level = level;
+        }
+
+        /**
+         * Calculates the image for the current preview setting. In progressive mode the coarser levels
+         * of the image pyramid are calculated first and published enlarged to the preview size. The full
+         * resolution is calculated right away, enlarging to it would cost more than the coarse levels save.
+         */
         @Override
-        abstract protected ImageProcessor doInBackground();
+        protected ImageProcessor doInBackground() {
+            if (!claimed.compareAndSet(false, true)) {
+                return null;
+            }
+            try {
+                int target = resizeToPreviewSize ? pyramid.getPreviewLevel() : pyramid.getFullLevel();
+                boolean progressive = PROGRESSIVE_PREVIEW && target != pyramid.getFullLevel();
+                int first = progressive && !reductionCache.contains(cacheGeneration, level, target) ? 0 : target;
+
+                for (int i = first; i < target && !isCancelled(); i++) {
+                    ImageProcessor coarse = render(i);
+                    if (!isCancelled()) {
+                        ImageProcessor targetProcessor = pyramid.getLevel(target);
+                        ImageProcessor enlarged = outputPool.acquire(targetProcessor.getWidth(), targetProcessor.getHeight());
+                        publish(ImagePyramid.enlarge(coarse, enlarged, engine.getPool()));
+                    }
+                    outputPool.release(coarse);
+                }
+
+                reportProgress = true;
+                back = render(target);
+                return back;
+            } finally {
+                // a cancelled task is done() right away, the scheduler has to wait until it really stops
+                javax.swing.SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        backgroundFinished = true;
+                        completed();
+                    }
+                });
+            }
+        }
+
+        /**
+         * Calculates the image for a level of the pyramid or copies it from the cache of previous results.
+         * The output image is taken from the pool.
+         */
+        private ImageProcessor render(int resolution) {
+            ImageProcessor theProcessor = pyramid.getLevel(resolution);
+            ImageProcessor output = outputPool.acquire(theProcessor.getWidth(), theProcessor.getHeight());
+
+            if (reductionCache.copyTo(cacheGeneration, level, resolution, (int[]) output.getPixels())) {
+                return output;
+            }
+
+            calculate(theProcessor, output);
+
+            if (!isCancelled()) {
+                reductionCache.put(cacheGeneration, level, resolution, (int[]) output.getPixels());
+            }
+            return output;
+        }
+
+        /**
+         * @param theProcessor input image, a level of the image pyramid
+         * @param output image of the same size receiving the result
+         */
+        abstract protected void calculate(ImageProcessor theProcessor, ImageProcessor output);
 
         @Override
-        public void done() {
-            sliderFrame.setCursor(null);
-            progressBar.setValue(0);
-            progressBar.setIndeterminate(false);
+        public void progressChanged(int percent) {
+            if (reportProgress) {
+                exposeSetProgress(percent);
+            }
+        }
 
-            try {
-                ImageProcessor ip = get();
-                result.setProcessor(ip);
+        /**
+         * Shows the latest coarse result, unless a newer request exists.
+         */
+        @Override
+        protected void process(List<ImageProcessor> chunks) {
+            boolean show = !isCancelled() && !scheduler.isOutdated(this);
+            for (int i = 0; i < chunks.size() - (show ? 1 : 0); i++) {
+                outputPool.release(chunks.get(i));
+            }
+
+            if (show) {
+                display(chunks.get(chunks.size() - 1));
 
                 if (!result.isVisible()) {
                     result.show();
                 }
-            } catch (InterruptedException ex) {
+            }
+        }
 
-            } catch (ExecutionException ex) {
+        @Override
+        public void done() {
+            if (!isCancelled() && !scheduler.isOutdated(this)) {
+                try {
+                    ImageProcessor ip = get();
+                    display(ip);
+                    shown = true;
+
+                    if (!result.isVisible()) {
+                        result.show();
+                    }
+                } catch (InterruptedException ex) {
+
+                } catch (ExecutionException ex) {
+
+                }
+            }
+            doneCalled = true;
+            if (claimed.compareAndSet(false, true)) {
+                // cancelled before doInBackground() started, it will never run
+                backgroundFinished = true;
+            }
+            completed();
+        }
+
+        /**
+         * Hands the scheduler over to the next request once the task is done and its background thread
+         * has stopped, so two calculations never run at the same time.
+         */
+        private void completed() {
+            if (!doneCalled || !backgroundFinished) {
+                return;
+            }
+            if (!shown) {
+                // a cancelled task sets its buffer only after done(), so it is released here
+                outputPool.release(back);
+            }
+            scheduler.finished(this);
+
+            if (shown && !sliderFrame.isDisplayable() && !scheduler.isRunning()) {
+                // the dialog was confirmed and the final result is shown, the result keeps its image
+                outputPool.clear();
+                logMetrics();
+            }
+        }
+
+        /**
+         * Swaps the image in as the displayed one, the image displayed before goes back to the pool.
+         */
+        private void display(ImageProcessor ip) {
+            ReductionMetrics.Measurement m = metrics.start(ReductionMetrics.DISPLAY, ip.getPixelCount());
+            try {
+                result.setProcessor(ip);
+            } finally {
+                metrics.stop(m);
+            }
 
+            if (front != ip) {
+                outputPool.release(front);
+                front = ip;
             }
         }
 
@@ -561,84 +1013,355 @@ public class Color_Reducer implements PlugInFilter {
         }
     }
 
+    /**
+     * Runs at most one calculation at a time. Requests arriving while a calculation is running cancel it
+     * and replace each other, so only the latest slider value is calculated next. Results of calculations
+     * that were overtaken by a newer request are not displayed. All methods are called on the event
+     * dispatch thread.
+     */
+    protected class CalculationScheduler {
+        private static final int NO_REQUEST = -1;
+
+        private CalculationTask running = null;
+
+        /**
+         * latest slider value not yet calculated
+         */
+        private int pending = NO_REQUEST;
+
+        private final PropertyChangeListener progressListener = new PropertyChangeListener() {
+
+            public void propertyChange(PropertyChangeEvent evt) {
+                if ("progress".equalsIgnoreCase(evt.getPropertyName()) && evt.getSource() == running) {
+                    int progress = (Integer) evt.getNewValue();
+                    progressBar.setIndeterminate(false);
+                    progressBar.setValue(progress);
+                }
+            }
+        };
+
+        /**
+         * @param sliderValue number of dominant colors, 0 => desaturate
+         */
+        public void schedule(int sliderValue) {
+            pending = sliderValue;
+
+            // let's display a fancy hourglass cursor
+            sliderFrame.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+
+            if (running == null) {
+                startPending();
+            } else {
+                running.cancel(false);
+            }
+        }
+
+        /**
+         * Drops the pending request and cancels the running calculation.
+         */
+        public void cancel() {
+            pending = NO_REQUEST;
+
+            if (running != null) {
+                running.cancel(false);
+            }
+        }
+
+        /**
+         * @return true while a calculation is running or requested
+         */
+        public boolean isRunning() {
+            return running != null || pending != NO_REQUEST;
+        }
+
+        /**
+         * @return true if the task's result has been overtaken by a newer request
+         */
+        public boolean isOutdated(CalculationTask task) {
+            return task != running || pending != NO_REQUEST;
+        }
+
+        /**
+         * Called when a task is done or cancelled and its background thread has stopped, starts the
+         * latest pending request.
+         */
+        public void finished(CalculationTask task) {
+            if (task != running) {
+                return;
+            }
+            running = null;
+
+            if (pending != NO_REQUEST) {
+                startPending();
+            } else {
+                sliderFrame.setCursor(null);
+                progressBar.setValue(0);
+                progressBar.setIndeterminate(false);
+            }
+        }
+
+        private void startPending() {
+            if (pending != 0) { // we want to reduce colors
+                running = new ReductionTask(pending);
+            } else { // we just want to desaturate the image, no real reduction
+                running = new DesaturationTask();
+            }
+            pending = NO_REQUEST;
+
+            running.addPropertyChangeListener(progressListener);
+            running.execute();
+        }
+    }
+
     /**
      * This task is used to completely desaturate a given image.
      *
-     * @see Color_Reducer#desaturateColors()
+     * @see ColorReducerEngine#desaturateColors()
      */
     protected class DesaturationTask extends CalculationTask {
-        public ImageProcessor doInBackground() {
-            ImageProcessor theProcessor = imageProcessor;
-            if (resizeToPreviewSize) {
-                theProcessor = downsizedImageProcessor;
-            }
+        public DesaturationTask() {
+            super(0);
+        }
+
+        @Override
+        protected void calculate(ImageProcessor theProcessor, ImageProcessor output) {
+            engine.desaturateColors(theProcessor, output, this);
+        }
+    }
+
+    /**
+     * Palettes of the analyzed image per level. A palette is built from the whole image at the first
+     * request of its level, so the preview at any resolution and the 8 bit image of the confirmed
+     * dialog get the same colors.
+     */
+    protected class PaletteCache {
+        private final ImagePyramid pyramid;
+        private final ColorIntervalIndex index;
+        private final Map<Integer, HuePalette> palettes = new HashMap<Integer, HuePalette>();
+
+        /**
+         * @param pyramid levels of the analyzed image
+         * @param index color intervals of the image
+         */
+        public PaletteCache(ImagePyramid pyramid, ColorIntervalIndex index) {
+            this.pyramid = pyramid;
+            this.index = index;
+        }
 
-            ImageProcessor returnProcessor = desaturateColors(theProcessor);
-            return returnProcessor;
+        /**
+         * @param level number of dominant colors, at most HuePalette.MAX_COLORS
+         * @return palette of the whole image
+         */
+        public synchronized HuePalette get(int level) {
+            HuePalette palette = palettes.get(level);
+            if (palette == null) {
+                palette = engine.createPalette(pyramid.getLevel(pyramid.getFullLevel()), index, level);
+                palettes.put(level, palette);
+            }
+            return palette;
         }
     }
 
     /**
      * This task is used to reduce colors of a given image.
      *
-     * @see Color_Reducer#reduceColors()
+     * @see ColorReducerEngine#reduceColors()
      */
     protected class ReductionTask extends CalculationTask {
         /**
-         * number of dominant colors
+         * true => saturation and value are quantized to a palette as well
          */
-        private final int level;
+        private final boolean palette;
+        private final PaletteCache palettes = Color_Reducer.this.palettes;
 
         /**
          * @param level number of dominant colors
          */
         public ReductionTask(int level) {
-            this.level = level;
+            super(level);
+            palette = paletteMode && level <= HuePalette.MAX_COLORS;
         }
 
         @Override
         /**
-         * @see CalculationTask#doInBackground()
-         * @see DesaturationTask#doInBackground()
+         * @see CalculationTask#calculate()
+         * @see DesaturationTask#calculate()
          */
-        protected ImageProcessor doInBackground() {
-            ImageProcessor theProcessor = imageProcessor;
-            if (resizeToPreviewSize) {
-                theProcessor = downsizedImageProcessor;
+        protected void calculate(ImageProcessor theProcessor, ImageProcessor output) {
+            if (palette) {
+                // the levels of saturation and value are those of the whole image, not of the pyramid level
+                engine.reducePalette(theProcessor, output, palettes.get(level), this);
+            } else {
+                engine.reduceColors(theProcessor, output, index, level, this);
             }
-
-
-            ImageProcessor returnProcessor = reduceColors(theProcessor, level);
-            return returnProcessor;
         }
     }
 
-    // @todo: slider label
-    public void createAndShowDialog(int sliderMax) {
-        sliderFrame = new JFrame("Farben reduzieren");
+    /**
+     * This task replaces the preview by the 8 bit indexed image of the whole input, once the dialog
+     * is confirmed in palette mode.
+     *
+     * @see ColorReducerEngine#reduceToPalette()
+     */
+    protected class PaletteTask extends SwingWorker<ImageProcessor, Void> implements ProgressMonitor {
+        private final int level;
+        private final PaletteCache palettes = Color_Reducer.this.palettes;
 
-        JPanel top = new JPanel();
-        JPanel center = new JPanel();
-        JPanel bottom = new JPanel();
+        /**
+         * @param level number of dominant colors, 0 => desaturation
+         */
+        public PaletteTask(int level) {
+            this.level = level;
+        }
 
-        center.setLayout(new BorderLayout());
+        @Override
+        protected ImageProcessor doInBackground() {
+            if (level == 0) {
+                return engine.getDesaturator().toByteProcessor(imageProcessor, engine.getPool(), this);
+            }
+            // the same palette as the preview
+            return engine.reduceToPalette(imageProcessor, palettes.get(level), this);
+        }
 
-        JCheckBox previewCheckBox = new JCheckBox();
-        previewCheckBox.setText("Vorschau");
-        previewCheckBox.setSelected(resizeToPreviewSize);
+        @Override
+        public void progressChanged(int percent) {
+            IJ.showProgress(percent, 100);
+        }
 
-        previewCheckBox.setEnabled(resizeToPreviewSize);
+        @Override
+        public void done() {
+            IJ.showProgress(1.0);
+            if (isCancelled()) {
+                return;
+            }
+            try {
+                ImageProcessor ip = get();
+                ReductionMetrics.Measurement m = metrics.start(ReductionMetrics.DISPLAY, ip.getPixelCount());
+                try {
+                    result.setProcessor(ip);
+                    result.show();
+                } finally {
+                    metrics.stop(m);
+                }
 
-        previewCheckBox.addItemListener(new ItemListener() {
+                // the rgb preview images are not needed anymore
+                outputPool.clear();
+                front = null;
+                logMetrics();
+            } catch (InterruptedException ex) {
 
-            public void itemStateChanged(ItemEvent e) {
-                resizeToPreviewSize = ((JCheckBox) e.getSource()).isSelected();
-                fireSliderChangeEvent();
+            } catch (ExecutionException ex) {
+                IJ.handleException(ex.getCause());
+            }
+        }
+    }
+
+    /**
+     * This task reduces all slices of a stack and shows them as a new stack.
+     *
+     * @see StackReducer#reduce()
+     */
+    protected class StackTask extends SwingWorker<ImageStack, Void> implements ProgressMonitor {
+        private final int level;
+        private final ColorIntervalIndex index = intervalIndex;
+
+        /**
+         * @param level number of dominant colors, 0 => desaturation
+         */
+        public StackTask(int level) {
+            this.level = level;
+            // an escape pressed before belongs to another command
+            IJ.resetEscape();
+            IJ.showStatus("Stack wird reduziert, Esc bricht ab");
+        }
+
+        @Override
+        protected ImageStack doInBackground() {
+            return stackReducer.reduce(level, index, this);
+        }
+
+        /**
+         * Called after every slice, pressing escape cancels the remaining slices.
+         */
+        @Override
+        public void progressChanged(int percent) {
+            if (IJ.escapePressed()) {
+                cancel(false);
+            }
+            IJ.showProgress(percent, 100);
+        }
+
+        @Override
+        public void done() {
+            IJ.showProgress(1.0);
+            if (isCancelled()) {
+                IJ.showStatus("Farbreduktion abgebrochen");
+                return;
+            }
+            try {
+                ImageStack stack = get();
+                ReductionMetrics.Measurement m = metrics.start(ReductionMetrics.DISPLAY, (long) pixelCount * stack.getSize());
+                try {
+                    result.setStack("Ausgabe", stack);
+                    result.setDimensions(input.getNChannels(), input.getNSlices(), input.getNFrames());
+                    result.setOpenAsHyperStack(input.isHyperStack());
+                    result.setCalibration(input.getCalibration());
+                    result.show();
+                } finally {
+                    metrics.stop(m);
+                }
+                logMetrics();
+            } catch (InterruptedException ex) {
+
+            } catch (ExecutionException ex) {
+                IJ.handleException(ex.getCause());
+            }
+        }
+    }
+
+    // @todo: slider label
+    public void createAndShowDialog(int sliderMax) {
+        sliderFrame = new JFrame("Farben reduzieren");
+
+        JPanel top = new JPanel();
+        JPanel center = new JPanel();
+        JPanel bottom = new JPanel();
+
+        center.setLayout(new BorderLayout());
+
+        JCheckBox previewCheckBox = new JCheckBox();
+        previewCheckBox.setText("Vorschau");
+        previewCheckBox.setSelected(resizeToPreviewSize);
+
+        previewCheckBox.setEnabled(resizeToPreviewSize);
+
+        previewCheckBox.addItemListener(new ItemListener() {
+
+            public void itemStateChanged(ItemEvent e) {
+                resizeToPreviewSize = ((JCheckBox) e.getSource()).isSelected();
+                fireSliderChangeEvent();
             }
         });
 
         top.add(previewCheckBox);
 
+        JCheckBox paletteCheckBox = new JCheckBox();
+        paletteCheckBox.setText("Palette (8 Bit)");
+        paletteCheckBox.setSelected(paletteMode);
+        paletteCheckBox.setEnabled(stackReducer == null);
+
+        paletteCheckBox.addItemListener(new ItemListener() {
+
+            public void itemStateChanged(ItemEvent e) {
+                paletteMode = ((JCheckBox) e.getSource()).isSelected();
+                // cached results belong to the other mode
+                reductionCache.clear();
+                fireSliderChangeEvent();
+            }
+        });
+
+        top.add(paletteCheckBox);
+
         //sliderFrame.setSize(250, 150);
         sliderFrame.setVisible(true);
         sliderFrame.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
@@ -669,293 +1392,4031 @@ public class Color_Reducer implements PlugInFilter {
                 final JSlider s = (JSlider) e.getSource();
                 text.setText(String.valueOf(s.getValue()));
 
-                PropertyChangeListener changeListener = new PropertyChangeListener() {
+                if (!s.getValueIsAdjusting()) {
+                    scheduler.schedule(s.getValue());
+                }
+            }
+        });
+
+        JPanel p = new JPanel();
+        p.setLayout(new FlowLayout());
+        p.setPreferredSize(new Dimension(250, 100));
+        p.setMinimumSize(new Dimension(250, 100));
+
+        sliderFrame.addWindowListener(new WindowAdapter() {
+
+            @Override
+            public void windowClosing(WindowEvent e) {
+                ImagePlus.removeImageListener(imageListener);
+                WindowManager.removeWindow(sliderFrame);
+                sliderFrame.dispose();
+                result.changes = false;
+                result.close();
+                histogramWindow.close();
+                reductionCache.clear();
+                outputPool.clear();
+                front = null;
+                logMetrics();
+            }
+        });
+
+        btnOkay = new JButton("OK");
+        btnOkay.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                ImagePlus.removeImageListener(imageListener);
+                sliderFrame.dispose();
+                histogramWindow.close();
+                WindowManager.removeWindow(sliderFrame);
+
+                resizeToPreviewSize = false;
+
+                if (stackReducer != null) {
+                    // the preview of the current slice is replaced by the whole stack
+                    scheduler.cancel();
+                    new StackTask(slider.getValue()).execute();
+                } else if (paletteMode && slider.getValue() <= HuePalette.MAX_COLORS) {
+                    // the preview is replaced by the 8 bit image
+                    scheduler.cancel();
+                    new PaletteTask(slider.getValue()).execute();
+                } else {
+                    fireSliderChangeEvent();
+                }
+            }
+        });
+        btnOkay.setSize(100, 25);
+
+        btnCancel = new JButton("Abbrechen");
+        btnCancel.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                ImagePlus.removeImageListener(imageListener);
+                sliderFrame.dispose();
+                result.changes = false;
+                result.close();
+                histogramWindow.close();
+                reductionCache.clear();
+                outputPool.clear();
+                front = null;
+                logMetrics();
+            }
+        });
+
+        center.add(slider, BorderLayout.NORTH);
+        center.add(text, BorderLayout.CENTER);
+        center.add(progressBar, BorderLayout.SOUTH);
+
+        bottom.add(btnOkay);
+        bottom.add(btnCancel);
+
+        sliderFrame.setLayout(new BorderLayout());
+        sliderFrame.add(top, BorderLayout.NORTH);
+        sliderFrame.add(center, BorderLayout.CENTER);
+        sliderFrame.add(bottom, BorderLayout.SOUTH);
+        sliderFrame.pack();
+        sliderFrame.toFront();
+    }
+
+    private void logMetrics() {
+        if (LOG_METRICS) {
+            IJ.log(metrics.toString());
+        }
+    }
+
+    private void log(String msg) {
+        if (DEBUG_MODE) {
+            IJ.log(msg);
+        }
+    }
+}
+
+/**
+ * Analyzes and reduces images without any user interface. The engine holds no state of the images it
+ * processes: the histogram and color intervals of an image are returned as an immutable ColorIntervalIndex
+ * and passed to the reduction explicitly. So one engine may reduce any number of images at the same time,
+ * e.g. on a server or in a batch, and all of them share the bounded worker pool of the plugin, unless
+ * the engine is given a pool of its own.
+ * The plugin is a client of the engine, which keeps the state of its dialog.
+ * @see Color_Reducer#getWorkerPool()
+ */
+final class ColorReducerEngine {
+
+    /**
+     * number of pixels sampled in the first round of the sampled mode
+     */
+    private static final int SAMPLE_SIZE_MIN = 1 << 16;
+
+    /**
+     * number of largest color intervals which have to be stable between two sampling rounds
+     */
+    private static final int SAMPLE_STABLE_INTERVALS = 4;
+
+    /**
+     * max difference of interval borders (in degrees of hue) between two sampling rounds
+     */
+    private static final int SAMPLE_TOLERANCE = 4;
+
+    public final static int STATE_IS_RISING_EDGE = 0;
+    public final static int STATE_IS_FALLING_EDGE = 1;
+    public final static int STATE_IS_PLATEAU = 2;
+    public final static int STATE_IS_GUESSING = 4;
+
+    private final HueTable hueTable;
+    private final Desaturator desaturator;
+    private final ReductionMetrics metrics;
+
+    /**
+     * runs the bands of all stages, null => the shared worker pool of the plugin
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * true => histograms are built from a sample, read once from Color_Reducer.HISTOGRAM_MODE_PROPERTY
+     */
+    private final boolean sampled;
+
+    /**
+     * @param hueTable lookup of the histogram containers
+     * @param desaturator grey model of the desaturation
+     * @param metrics receives the measurements of all stages, may be shared by several engines
+     */
+    public ColorReducerEngine(HueTable hueTable, Desaturator desaturator, ReductionMetrics metrics) {
+        this(hueTable, desaturator, metrics, null);
+    }
+
+    /**
+     * @param hueTable lookup of the histogram containers
+     * @param desaturator grey model of the desaturation
+     * @param metrics receives the measurements of all stages, may be shared by several engines
+     * @param pool runs the bands of all stages, null => the shared worker pool of the plugin
+     */
+    public ColorReducerEngine(HueTable hueTable, Desaturator desaturator, ReductionMetrics metrics, ForkJoinPool pool) {
+        this.hueTable = hueTable;
+        this.desaturator = desaturator;
+        this.metrics = metrics;
+        this.pool = pool;
+        this.sampled = "sampled".equalsIgnoreCase(System.getProperty(Color_Reducer.HISTOGRAM_MODE_PROPERTY));
+    }
+
+    /**
+     * @return engine with the histogram size and grey model set by the system properties and metrics of its own
+     */
+    public static ColorReducerEngine createDefault() {
+        return new ColorReducerEngine(HueTable.getInstance(Color_Reducer.getConfiguredHistogramSize(),
+                Color_Reducer.getWorkerPool()), Desaturator.getDefault(), new ReductionMetrics());
+    }
+
+    HueTable getHueTable() {
+        return hueTable;
+    }
+
+    Desaturator getDesaturator() {
+        return desaturator;
+    }
+
+    /**
+     * @return metrics of all stages run by this engine so far
+     */
+    ReductionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return pool running the bands of all stages
+     */
+    ForkJoinPool getPool() {
+        return pool != null ? pool : Color_Reducer.getWorkerPool();
+    }
+
+    /**
+     * @return number of histogram containers
+     */
+    int getHistogramSize() {
+        return hueTable.getHistogramSize();
+    }
+
+    /**
+     * Analyzes a given histogram and searches for color intervals by using a hill climbing algorithm.
+     */
+    public static ArrayList<ColorInterval> findColorIntervals(int[] h) {
+        int state = STATE_IS_GUESSING;
+
+        int leftBoundary = 0;
+        int rightBoundary = 0;
+
+        int maxKey = h.length - 1;
+        ArrayList<ColorInterval> returnList = new ArrayList<ColorInterval>();
+
+        for (int i = 1; i < h.length; i++) {
+            int val = h[i];
+            int pre = h[i-1];
+
+            switch (state) {
+                case STATE_IS_GUESSING:
+                    if (val > pre) {
+                        state = STATE_IS_RISING_EDGE;
+                        leftBoundary = i;
+                    }
+
+                    if (val < pre) {
+                        state = STATE_IS_FALLING_EDGE;
+                    }
+
+                    if (val == pre) {
+                        state = STATE_IS_PLATEAU;
+                    }
+                    break;
+                case STATE_IS_FALLING_EDGE:
+                    if (i == maxKey) {
+                        rightBoundary = i;
+                        returnList.add(new ColorInterval(leftBoundary, rightBoundary, h));
+                        break;
+                    }
+
+                    if (val > pre) {
+                        state = STATE_IS_RISING_EDGE;
+                        rightBoundary = i;
+                        returnList.add(new ColorInterval(leftBoundary, rightBoundary, h));
+
+                        leftBoundary = i;
+                    } else if (val == 0) {
+                        state = STATE_IS_PLATEAU;
+                        rightBoundary = i;
+                        returnList.add(new ColorInterval(leftBoundary, rightBoundary, h));
+                    }
+
+                    break;
+                case STATE_IS_RISING_EDGE:
+                    if (val < pre) {
+                        state = STATE_IS_FALLING_EDGE;
+                    }
+
+                    if (i == maxKey) {
+                        rightBoundary = i;
+                        returnList.add(new ColorInterval(leftBoundary, rightBoundary, h));
+                    }
+                    break;
+                case STATE_IS_PLATEAU:
+                    if (val > pre) {
+                        state = STATE_IS_RISING_EDGE;
+                        leftBoundary = i;
+                    }
+
+                    if (val < pre) {
+                        state = STATE_IS_FALLING_EDGE;
+                    }
+
+                    if (i == maxKey && val > 0) {
+                        rightBoundary = i;
+                        returnList.add(new ColorInterval(leftBoundary, rightBoundary, h));
+                    }
+                    break;
+            }
+        }
+
+        if (rightBoundary == maxKey) {
+            int last = returnList.size() - 1;
+            ColorInterval lastInterval = returnList.remove(last);
+
+            returnList.set(0, returnList.get(0).withBegin(lastInterval.getBegin()));
+        }
+        return returnList;
+    }
+
+    /**
+     * Analyzes a given histogram and searches for color intervals by using a hill climbing algorithm.
+     * @deprecated
+     */
+    public static List<ColorInterval> getColorIntervals(int[] h) {
+        // TODO: merge first and last interval
+        List<ColorInterval> res = new ArrayList<ColorInterval>(h.length);
+        boolean isFallingEdge = false;
+        int leftBound = 0;
+        ColorInterval ci;
+
+        for (int i = 1; i < h.length; i++) {
+            if (h[i - 1] > h[i]) {
+                isFallingEdge = true;
+            }
+
+            if (h[i - 1] < h[i] && isFallingEdge) {
+                isFallingEdge = false;
+                ci = new ColorInterval(leftBound, i - 1, h);
+                res.add(ci);
+                leftBound = i;
+            }
+        }
+        res.add(new ColorInterval(leftBound, h.length - 1, h));
+
+        // res.get(0).merge(ci);
+        return res;
+    }
+
+    /**
+     * @param h histogram
+     * @return color intervals of the histogram, sorted by frequency
+     */
+    List<ColorInterval> detectColorIntervals(int[] h) {
+        List<ColorInterval> intervals = getColorIntervals(h);
+        // todo: we want to replace getColorIntervals() by findColorIntervals()
+        // ArrayList<ColorInterval> test = findColorIntervals(h);
+
+        Collections.sort(intervals);
+        return intervals;
+    }
+
+    /**
+     * @param h histogram
+     * @return index of the color intervals of the histogram
+     */
+    ColorIntervalIndex indexColorIntervals(int[] h) {
+        ReductionMetrics.Measurement m = metrics.start(ReductionMetrics.INTERVALS, 0);
+        try {
+            return new ColorIntervalIndex(h, detectColorIntervals(h));
+        } finally {
+            metrics.stop(m);
+        }
+    }
+
+    /**
+     * Builds the hue histogram of an image and searches its color intervals.
+     * @param ip ImageProcessor input image
+     * @return index of the color intervals of the image
+     */
+    ColorIntervalIndex analyze(ImageProcessor ip) {
+        return indexColorIntervals(buildHistogram(ip));
+    }
+
+    /**
+     * Builds the hue histogram of an image, either exact or from a sample.
+     * @see Color_Reducer#HISTOGRAM_MODE_PROPERTY
+     * @param ip ImageProcessor input image
+     * @return histogram
+     */
+    int[] buildHistogram(ImageProcessor ip) {
+        return buildHistogram(new ProcessorPixels(ip), ip.getWidth(), ip.getHeight());
+    }
+
+    /**
+     * Builds the hue histogram of an image, either exact or from a sample.
+     * @see Color_Reducer#HISTOGRAM_MODE_PROPERTY
+     * @param pixels PixelSource of the input image
+     * @param width image width
+     * @param height image height
+     * @return histogram
+     */
+    int[] buildHistogram(PixelSource pixels, int width, int height) {
+        ReductionMetrics.Measurement m = metrics.start(ReductionMetrics.HISTOGRAM, (long) width * height);
+        try {
+            // create histogram for hue (hsv)
+            if (sampled) {
+                return sampleHistogram(pixels, width, height);
+            }
+            return toHistogram(getPool().invoke(countHues(pixels, width, height)));
+        } finally {
+            metrics.stop(m);
+        }
+    }
+
+    /**
+     * @return task counting the histogram container of every pixel
+     */
+    private RowBandHistogram countHues(final PixelSource pixels, final int width, int height) {
+        return new RowBandHistogram(width, height, hueTable.getHistogramSize()) {
+            @Override
+            protected void countBand(int startRow, int endRow, long[] counts) {
+                int[] containers = new int[HueTable.CHUNK];
+                for (int i = startRow * width, end = endRow * width; i < end; i += HueTable.CHUNK) {
+                    int n = Math.min(HueTable.CHUNK, end - i);
+                    hueTable.lookup(pixels, i, i + n, containers);
+                    for (int k = 0; k < n; k++) {
+                        counts[containers[k]]++;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * @return task counting the histogram container of one randomly placed pixel per square cell, a
+     * row of the task is a row of cells
+     */
+    private RowBandHistogram sampleHues(final PixelSource pixels, final int width, final int height,
+            final int cellSize, final int round) {
+        final int columns = (width + cellSize - 1) / cellSize;
+
+        return new RowBandHistogram(columns, (height + cellSize - 1) / cellSize, hueTable.getHistogramSize()) {
+            @Override
+            protected void countBand(int startRow, int endRow, long[] counts) {
+                for (int cy = startRow; cy < endRow; cy++) {
+                    int top = cy * cellSize;
+                    int cellHeight = Math.min(cellSize, height - top);
+
+                    for (int cx = 0; cx < columns; cx++) {
+                        int left = cx * cellSize;
+                        int cellWidth = Math.min(cellSize, width - left);
+
+                        // cheap integer hash of cell and round instead of a shared random generator
+                        int hash = cx * 0x9e3779b1 ^ cy * 0x85ebca77 ^ round * 0xc2b2ae3d;
+                        hash ^= hash >>> 15;
+                        hash *= 0x2c1b3c6d;
+                        hash ^= hash >>> 12;
+
+                        int x = left + (hash & 0xffff) % cellWidth;
+                        int y = top + (hash >>> 16) % cellHeight;
+                        counts[hueTable.lookup(pixels.get(y * width + x))]++;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Converts counts into a histogram. Color intervals sum up their containers in int, so counts of
+     * images of 2^31 pixels or more are scaled down by a common factor until the total fits. The ratios
+     * the intervals are found by stay the same, and no container drops to zero.
+     * @param counts counts of the pixels of an image
+     * @return histogram
+     */
+    static int[] toHistogram(long[] counts) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        double scale = total > Integer.MAX_VALUE ? (double) (Integer.MAX_VALUE - counts.length) / total : 1;
+
+        int[] h = new int[counts.length];
+        for (int i = 0; i < h.length; i++) {
+            h[i] = scale < 1 && counts[i] > 0 ? Math.max(1, (int) (counts[i] * scale)) : (int) counts[i];
+        }
+        return h;
+    }
+
+    /**
+     * Builds the hue histogram from a stratified sample of the pixels: the image is divided into square
+     * cells and one pixel at a random position is taken from every cell. The cells are halved in size each
+     * round, until the largest color intervals of two consecutive rounds are found in each other with
+     * borders within SAMPLE_TOLERANCE. If the cells shrink to single pixels, the exact histogram is built instead.
+     * @param pixels PixelSource of the input image
+     * @param width image width
+     * @param height image height
+     * @return histogram of the last sample
+     */
+    private int[] sampleHistogram(PixelSource pixels, int width, int height) {
+        int cellSize = (int) Math.sqrt((double) width * height / SAMPLE_SIZE_MIN);
+        List<ColorInterval> previous = null;
+
+        for (int round = 0; cellSize > 1; round++, cellSize /= 2) {
+            int[] sample = toHistogram(getPool().invoke(sampleHues(pixels, width, height, cellSize, round)));
+
+            List<ColorInterval> intervals = getColorIntervals(sample);
+            Collections.sort(intervals);
+
+            if (previous != null && haveSameLargestIntervals(previous, intervals)) {
+                return sample;
+            }
+            previous = intervals;
+        }
+        return toHistogram(getPool().invoke(countHues(pixels, width, height)));
+    }
+
+    /**
+     * Builds the hue histogram of one randomly placed pixel per square cell, far cheaper than the exact
+     * histogram, e.g. to compare images.
+     * @param ip ImageProcessor input image
+     * @param cellSize edge length of the cells in pixels
+     * @return histogram of the sample
+     */
+    int[] buildSampledHistogram(ImageProcessor ip, int cellSize) {
+        int width = ip.getWidth(), height = ip.getHeight();
+        int rows = (height + cellSize - 1) / cellSize;
+        int columns = (width + cellSize - 1) / cellSize;
+
+        ReductionMetrics.Measurement m = metrics.start(ReductionMetrics.HISTOGRAM, (long) rows * columns);
+        try {
+            return toHistogram(getPool().invoke(sampleHues(new ProcessorPixels(ip), width, height, cellSize, 0)));
+        } finally {
+            metrics.stop(m);
+        }
+    }
+
+    /**
+     * Compares the color intervals of two sampling rounds.
+     * @param a intervals sorted by frequency
+     * @param b intervals sorted by frequency
+     * @return true if the SAMPLE_STABLE_INTERVALS largest intervals of each list are found in the other list
+     */
+    private boolean haveSameLargestIntervals(List<ColorInterval> a, List<ColorInterval> b) {
+        return containsLargestIntervals(b, a) && containsLargestIntervals(a, b);
+    }
+
+    /**
+     * @return true if every one of the largest intervals has a counterpart in the given list whose borders
+     * differ by at most SAMPLE_TOLERANCE
+     */
+    private boolean containsLargestIntervals(List<ColorInterval> intervals, List<ColorInterval> largest) {
+        int count = Math.min(SAMPLE_STABLE_INTERVALS, largest.size());
+        int tolerance = Math.max(1, SAMPLE_TOLERANCE * getHistogramSize() / Color_Reducer.NUMBER_OF_COLORS);
+
+        for (ColorInterval ci : largest.subList(largest.size() - count, largest.size())) {
+            boolean found = false;
+            for (ColorInterval other : intervals) {
+                if (Math.abs(ci.getBegin() - other.getBegin()) <= tolerance
+                        && Math.abs(ci.getEnd() - other.getEnd()) <= tolerance) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Converts input image into grayscale image. By default the grey is the HSV value, which equals
+     * RGB -> HSV conversion with the saturation set to zero and back to RGB.
+     * @param ImageProcessor ipin ImageProcessor input image data
+     * @return ImageProcessor Grayscale ImageProcessor
+     * @see Desaturator#MODEL_PROPERTY
+     */
+    public ImageProcessor desaturateColors(ImageProcessor ipin) {
+        return desaturateColors(ipin, new ColorProcessor(ipin.getWidth(), ipin.getHeight()), null);
+    }
+
+    /**
+     * Converts input image into grayscale image like desaturateColors(ipin), in bands of rows on the worker pool.
+     * @param ipin ImageProcessor input image
+     * @param ipout ImageProcessor output image of the same size as the input, may be the input
+     * @param monitor ProgressMonitor informed after every band, may be null
+     * @return ipout
+     */
+    ImageProcessor desaturateColors(ImageProcessor ipin, ImageProcessor ipout, ProgressMonitor monitor) {
+        int width = ipin.getWidth(), height = ipin.getHeight();
+        ReductionMetrics.Measurement m = metrics.start(ReductionMetrics.DESATURATION, (long) width * height);
+        try {
+            desaturator.desaturate(new ProcessorPixels(ipin), new ProcessorPixels(ipout), width, height, getPool(), monitor);
+        } finally {
+            metrics.stop(m);
+        }
+        return ipout;
+    }
+
+    /**
+     * Replaces a color variant by its most similar variant which is already more dominant in the image.
+     * The image is processed in bands of rows on the worker pool.
+     * @param ipin ImageProcessor input image
+     * @param ipout ImageProcessor output image of the same size as the input, may be the input
+     * @param index ColorIntervalIndex of the analyzed image
+     * @param colorLevel int Number of dominant color variants after reduction
+     * @param monitor ProgressMonitor informed after every band, may be null
+     * @return ipout, only partially reduced if the monitor was cancelled
+     */
+    ImageProcessor reduceColors(ImageProcessor ipin, ImageProcessor ipout, ColorIntervalIndex index, int colorLevel,
+            ProgressMonitor monitor) {
+        return remapHues(ipin, ipout, createHueRemap(index, colorLevel), monitor);
+    }
+
+    /**
+     * Reduces the colors like reduceColors() and quantizes saturation and value as well, so at most
+     * HuePalette.MAX_COLORS colors remain. The result is still an rgb image, e.g. for the preview.
+     * @param ipin ImageProcessor input image
+     * @param ipout ImageProcessor output image of the same size as the input, may be the input
+     * @param index ColorIntervalIndex of the analyzed image
+     * @param colorLevel int Number of dominant color variants after reduction, at most HuePalette.MAX_COLORS
+     * @param monitor ProgressMonitor informed after every band, may be null
+     * @return ipout
+     */
+    ImageProcessor reducePalette(ImageProcessor ipin, ImageProcessor ipout, ColorIntervalIndex index, int colorLevel,
+            ProgressMonitor monitor) {
+        return reducePalette(ipin, ipout, createPalette(ipin, index, colorLevel), monitor);
+    }
+
+    /**
+     * Replaces every pixel by its color of a given palette, e.g. one built from the whole image for a
+     * downsized preview. The result is still an rgb image.
+     * @param ipin ImageProcessor input image
+     * @param ipout ImageProcessor output image of the same size as the input, may be the input
+     * @param palette HuePalette of the analyzed image
+     * @param monitor ProgressMonitor informed after every band, may be null
+     * @return ipout
+     */
+    ImageProcessor reducePalette(ImageProcessor ipin, ImageProcessor ipout, HuePalette palette, ProgressMonitor monitor) {
+        int width = ipin.getWidth(), height = ipin.getHeight();
+        ReductionMetrics.Measurement m = metrics.start(ReductionMetrics.REDUCTION, (long) width * height);
+        try {
+            palette.apply(new ProcessorPixels(ipin), new ProcessorPixels(ipout), width, height, getPool(), monitor);
+        } finally {
+            metrics.stop(m);
+        }
+        return ipout;
+    }
+
+    /**
+     * Reduces the colors to a palette like reducePalette() and stores the image as palette entries.
+     * @param ipin ImageProcessor input image
+     * @param index ColorIntervalIndex of the analyzed image
+     * @param colorLevel int Number of dominant color variants after reduction, at most HuePalette.MAX_COLORS
+     * @param monitor ProgressMonitor informed after every band, may be null
+     * @return 8 bit image with the palette as LUT
+     */
+    ImageProcessor reduceToPalette(ImageProcessor ipin, ColorIntervalIndex index, int colorLevel, ProgressMonitor monitor) {
+        return reduceToPalette(ipin, createPalette(ipin, index, colorLevel), monitor);
+    }
+
+    /**
+     * Stores the image as entries of a given palette.
+     * @param ipin ImageProcessor input image
+     * @param palette HuePalette of the analyzed image
+     * @param monitor ProgressMonitor informed after every band, may be null
+     * @return 8 bit image with the palette as LUT
+     */
+    ImageProcessor reduceToPalette(ImageProcessor ipin, HuePalette palette, ProgressMonitor monitor) {
+        int width = ipin.getWidth(), height = ipin.getHeight();
+        ReductionMetrics.Measurement m = metrics.start(ReductionMetrics.REDUCTION, (long) width * height);
+        try {
+            return palette.toByteProcessor(new ProcessorPixels(ipin), width, height, getPool(), monitor);
+        } finally {
+            metrics.stop(m);
+        }
+    }
+
+    /**
+     * Finds the levels of saturation and value of the image, counted like the histogram.
+     * @param ip ImageProcessor of the analyzed image
+     * @param index ColorIntervalIndex of the analyzed image
+     * @param colorLevel int Number of dominant color variants after reduction, at most HuePalette.MAX_COLORS
+     * @return palette of the image reduced to the color level
+     */
+    HuePalette createPalette(ImageProcessor ip, ColorIntervalIndex index, int colorLevel) {
+        int width = ip.getWidth(), height = ip.getHeight();
+        ReductionMetrics.Measurement m = metrics.start(ReductionMetrics.HISTOGRAM, (long) width * height);
+        try {
+            return HuePalette.build(new ProcessorPixels(ip), width, height, createHueRemap(index, colorLevel), hueTable,
+                    getPool());
+        } finally {
+            metrics.stop(m);
+        }
+    }
+
+    /**
+     * Determines for every histogram container the container its hue is replaced with, if only
+     * the given number of color intervals of the analyzed image remains.
+     * @param index ColorIntervalIndex of the analyzed image
+     * @param colorLevel int Number of dominant color variants after reduction
+     * @return HueRemap
+     * @see ColorReducerEngine#reduceColors()
+     */
+    HueRemap createHueRemap(ColorIntervalIndex index, int colorLevel) {
+        // the histogram may have lost intervals since the color level was chosen
+        return index.createHueRemap(Math.min(colorLevel, index.size()));
+    }
+
+    /**
+     * Replaces the hue of every pixel as given by the remap. The image is processed in bands of rows on the worker pool.
+     * @param ipin ImageProcessor input image
+     * @param ipout ImageProcessor output image of the same size as the input, may be the input
+     * @param remap HueRemap of the histogram containers
+     * @param monitor ProgressMonitor informed after every band, may be null
+     * @return ipout, only partially remapped if the monitor was cancelled
+     */
+    ImageProcessor remapHues(ImageProcessor ipin, ImageProcessor ipout, HueRemap remap, ProgressMonitor monitor) {
+        remapHues(new ProcessorPixels(ipin), new ProcessorPixels(ipout), ipin.getWidth(), ipin.getHeight(), remap, monitor);
+        return ipout;
+    }
+
+    /**
+     * Replaces the hue of every pixel as given by the remap. The image is processed in bands of rows on the worker pool.
+     * @param src PixelSource of the input image
+     * @param dst PixelSink of the output image of the same size, may be the input
+     * @param width image width
+     * @param height image height
+     * @param remap HueRemap of the histogram containers
+     * @param monitor ProgressMonitor informed after every band, may be null
+     */
+    void remapHues(final PixelSource src, final PixelSink dst, int width, int height, final HueRemap remap,
+            ProgressMonitor monitor) {
+        ReductionMetrics.Measurement m = metrics.start(ReductionMetrics.REDUCTION, (long) width * height);
+        try {
+            getPool().invoke(new RowBandAction(width, height, monitor) {
+                @Override
+                protected void processBand(int from, int to) {
+                    remap.apply(src, dst, from, to, hueTable);
+                }
+            });
+        } finally {
+            metrics.stop(m);
+        }
+    }
+
+    /**
+     * Removes the color of every pixel like desaturateColors(), from any pixel source.
+     * @param src PixelSource of the input image
+     * @param dst PixelSink of the output image of the same size, may be the input
+     * @param width image width
+     * @param height image height
+     */
+    void desaturate(PixelSource src, PixelSink dst, int width, int height) {
+        ReductionMetrics.Measurement m = metrics.start(ReductionMetrics.DESATURATION, (long) width * height);
+        try {
+            desaturator.desaturate(src, dst, width, height, getPool(), null);
+        } finally {
+            metrics.stop(m);
+        }
+    }
+}
+
+/**
+ * A ColorInterval is a local maximum and its edges in the histogram. The dominance of a color hue
+ * is calculated by interval's area. Intervals are immutable, so they may be shared between threads.
+ */
+final class ColorInterval implements Comparable<ColorInterval> {
+
+    /**
+     * left border
+     */
+    private final int begin;
+    /**
+     * right border
+     */
+    private final int end;
+
+    /**
+     * cumulated frequency of histogram values within the interval
+     */
+    private final int frequency;
+
+    /**
+     * max value in interval
+     */
+    private final int max;
+
+    /**
+     * absolute position of max value in histogram. This is not a position
+     * within the interval.
+     */
+    private final int maxPos;
+
+    /**
+     * histogram the interval was found in
+     */
+    private final int[] histogram;
+
+    /**
+     * An interval with begin &gt; end wraps around the end of the histogram.
+     */
+    public ColorInterval(int begin, int end, int[] histogram) {
+        this.begin = begin;
+        this.end = end;
+        this.histogram = histogram;
+
+        int res = 0;
+        int maxValue = histogram[begin];
+        int position = begin;
+
+        // containers from begin to end, continued at 0 after the last container
+        int length = end >= begin ? end - begin + 1 : histogram.length - begin + end + 1;
+        for (int k = 0, i = begin; k < length; k++, i = i + 1 < histogram.length ? i + 1 : 0) {
+            res += histogram[i];
+            if (histogram[i] > maxValue) {
+                maxValue = histogram[i];
+                position = i;
+            }
+        }
+
+        frequency = res;
+        max = maxValue;
+        maxPos = position;
+    }
+
+    /**
+     * @param newBegin left border
+     * @return interval with the new left border and the same right border
+     */
+    public ColorInterval withBegin(int newBegin) {
+        if (newBegin < histogram.length - 1) {
+            return new ColorInterval(newBegin, end, histogram);
+        }
+        return this;
+    }
+
+    /**
+     * Compare by cumulated frequencies.
+     */
+    @Override
+    public int compareTo(ColorInterval o) {
+        int myFreq = getFrequency();
+        int otherFreq = o.getFrequency();
+
+        if (myFreq < otherFreq) {
+            return -1;
+        } else if (myFreq > otherFreq) {
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * @return int Width of interval.
+     */
+    public int getWidth() {
+        return end - begin + 1;
+    }
+
+    /**
+     * @return int Left border of interval.
+     */
+    public int getBegin() {
+        return begin;
+    }
+
+    /**
+     * @return int Right border of interval.
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    /**
+     * @return int cumulated frequency
+     */
+    public int getFrequency() {
+        return frequency;
+    }
+
+    /**
+     * @return max value
+     */
+    public int getMax() {
+        return max;
+    }
+
+    /**
+     * @return int Position of max value.
+     */
+    public int getMaxIndex() {
+        return maxPos;
+    }
+
+    @Override
+    public String toString() {
+        return "begin: " + begin + " end: " + end;
+    }
+
+    /**
+     * checks if a given index is within the boundaries of the interval, returns true or false.
+     */
+    boolean includes(int index) {
+        return index >= begin && index <= end;
+    }
+}
+
+/**
+ * Immutable index of the color intervals of one histogram, built once and shared by all threads.
+ * Intervals are ranked by frequency, rank 0 is the least frequent; at color level k the k intervals of the
+ * highest ranks are dominant. The index answers in constant time
+ * <ul>
+ * <li>which interval contains a histogram container,</li>
+ * <li>the frequency of any range of containers, also wrapping around the end, from prefix sums,</li>
+ * <li>which interval replaces the hue of a container at any color level.</li>
+ * </ul>
+ * The replacements of all color levels are found in a single sweep: going from one level to the next
+ * only adds the next less frequent interval to the dominant ones, so each container just has to compare
+ * its distance to that interval with its nearest dominant interval so far.
+ */
+final class ColorIntervalIndex {
+
+    private static final int NONE = -1;
+
+    /**
+     * prefixSums[i] = sum of the containers [0, i)
+     */
+    private final long[] prefixSums;
+
+    /**
+     * intervals sorted by frequency
+     */
+    private final ColorInterval[] intervals;
+
+    /**
+     * rank of the interval including a container, NONE if there is none
+     */
+    private final int[] rankOfContainer;
+
+    /**
+     * per color level 1..size(): rank of the interval replacing the hue of each container
+     */
+    private final short[][] replacementRanks;
+
+    /**
+     * @param histogram histogram the intervals were found in
+     * @param sortedIntervals intervals sorted by frequency
+     */
+    public ColorIntervalIndex(int[] histogram, List<ColorInterval> sortedIntervals) {
+        prefixSums = new long[histogram.length + 1];
+        for (int i = 0; i < histogram.length; i++) {
+            prefixSums[i + 1] = prefixSums[i] + histogram[i];
+        }
+
+        intervals = sortedIntervals.toArray(new ColorInterval[sortedIntervals.size()]);
+
+        // like a search through all intervals, the more frequent one wins if intervals overlap
+        rankOfContainer = new int[histogram.length];
+        Arrays.fill(rankOfContainer, NONE);
+        for (int rank = 0; rank < intervals.length; rank++) {
+            for (int i = intervals[rank].getBegin(); i <= intervals[rank].getEnd(); i++) {
+                rankOfContainer[i] = rank;
+            }
+        }
+
+        replacementRanks = findReplacements();
+    }
+
+    /**
+     * @return number of intervals
+     */
+    public int size() {
+        return intervals.length;
+    }
+
+    /**
+     * @return number of histogram containers
+     */
+    public int getHistogramSize() {
+        return rankOfContainer.length;
+    }
+
+    /**
+     * @param rank 0 => least frequent interval
+     * @return ColorInterval
+     */
+    public ColorInterval get(int rank) {
+        return intervals[rank];
+    }
+
+    /**
+     * @return intervals sorted by frequency
+     */
+    public List<ColorInterval> getIntervals() {
+        return Collections.unmodifiableList(Arrays.asList(intervals));
+    }
+
+    /**
+     * @param container histogram container
+     * @return rank of the interval including the container, -1 if there is none
+     */
+    public int rankAt(int container) {
+        return rankOfContainer[container];
+    }
+
+    /**
+     * @param container histogram container
+     * @return interval including the container, null if there is none
+     */
+    public ColorInterval intervalAt(int container) {
+        int rank = rankOfContainer[container];
+        return rank != NONE ? intervals[rank] : null;
+    }
+
+    /**
+     * @param begin first container
+     * @param end last container, a range with end &lt; begin wraps around the end of the histogram
+     * @return cumulated frequency of the containers
+     */
+    public long frequency(int begin, int end) {
+        if (begin <= end) {
+            return prefixSums[end + 1] - prefixSums[begin];
+        }
+        return prefixSums[prefixSums.length - 1] - prefixSums[begin] + prefixSums[end + 1];
+    }
+
+    /**
+     * @param rank rank of an interval
+     * @param colorLevel number of dominant intervals
+     * @return true if the interval is one of the dominant intervals at the color level
+     */
+    public boolean isDominant(int rank, int colorLevel) {
+        return rank >= intervals.length - colorLevel;
+    }
+
+    /**
+     * @param container histogram container
+     * @param colorLevel number of dominant intervals, at least 1
+     * @return the including interval if it is dominant, otherwise the dominant interval whose borders
+     * are closest to the container
+     */
+    public ColorInterval replacement(int container, int colorLevel) {
+        return intervals[replacementRanks[colorLevel - 1][container]];
+    }
+
+    /**
+     * Determines for every histogram container the container its hue is replaced with, if only
+     * the given number of color intervals remains. Hues within a dominant interval are replaced by the
+     * interval's max, all other hues by the max of the nearest dominant interval.
+     * @param colorLevel int Number of dominant color variants after reduction, at least 1
+     * @return HueRemap
+     */
+    public HueRemap createHueRemap(int colorLevel) {
+        short[] ranks = replacementRanks[colorLevel - 1];
+        int[] targets = new int[ranks.length];
+
+        for (int index = 0; index < targets.length; index++) {
+            targets[index] = intervals[ranks[index]].getMaxIndex();
+        }
+        return new HueRemap(targets);
+    }
+
+    /**
+     * Sweeps through all color levels. Distances wrap around the end of the histogram; ties go to the
+     * less frequent interval, which is the one added later.
+     * @return rank of the replacing interval per color level and container
+     */
+    private short[][] findReplacements() {
+        int n = rankOfContainer.length;
+        short[][] replacements = new short[intervals.length][];
+
+        // nearest dominant interval so far and its distance per container
+        int[] minDistances = new int[n];
+        short[] nearest = new short[n];
+        Arrays.fill(minDistances, Integer.MAX_VALUE);
+
+        for (int level = 1; level <= intervals.length; level++) {
+            int rank = intervals.length - level;
+            ColorInterval di = intervals[rank];
+            short[] ranks = new short[n];
+
+            for (int index = 0; index < n; index++) {
+                int distance = Math.min(Math.abs(index - di.getBegin()), Math.abs(index - di.getEnd()));
+
+                if (n - Math.abs(index - di.getBegin()) < distance)
+                    distance = n - Math.abs(index - di.getBegin());
+
+                if (n - Math.abs(index - di.getEnd()) < distance)
+                    distance = n - Math.abs(index - di.getEnd());
+
+                if (distance <= minDistances[index]) {
+                    minDistances[index] = distance;
+                    nearest[index] = (short) rank;
+                }
+
+                int including = rankOfContainer[index];
+                ranks[index] = including != NONE && isDominant(including, level) ? (short) including : nearest[index];
+            }
+            replacements[level - 1] = ranks;
+        }
+        return replacements;
+    }
+}
+
+/**
+ * Hue histogram of an image or of the pixels within a region of interest, which is kept up to date when
+ * pixels change. A hash of every row of the image is remembered, so an update finds the changed rows
+ * without knowing where the image was edited, also outside the region, and only looks up the hues of
+ * the changed rows within the region. Once the image
+ * is edited, the histogram container of every pixel of the region is remembered as well: pixels whose
+ * container differs are subtracted from the old container and added to the new one. Apart from hashing
+ * the rows, the time of an update depends on the size of the edit, not of the image.
+ */
+final class HueHistogram {
+
+    private final HueTable hueTable;
+
+    /**
+     * counts the bands of the histogram and its updates
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * region of the image the histogram is built from
+     */
+    private final Rectangle bounds;
+
+    /**
+     * pixels of the region outside this mask are ignored, null => all pixels of the region
+     */
+    private final byte[] mask;
+
+    /**
+     * hash of the pixels of every row of the image
+     */
+    private final long[] rowHashes;
+
+    /**
+     * histogram container per pixel of the region, row by row, -1 outside the mask, null until the
+     * first update, so images which are never edited do not keep a copy of the region
+     */
+    private short[] containers;
+
+    private final int[] counts;
+
+    /**
+     * Builds the histogram of a region of an image.
+     * @param hueTable lookup of the histogram containers
+     * @param ip ColorProcessor
+     * @param bounds region, the whole image if null
+     * @param mask mask of the size of the region, e.g. of a non-rectangular ROI, may be null
+     * @param pool counts the bands of this and all later updates
+     */
+    public HueHistogram(HueTable hueTable, ImageProcessor ip, Rectangle bounds, ImageProcessor mask, ForkJoinPool pool) {
+        this.hueTable = hueTable;
+        this.pool = pool;
+        this.bounds = bounds != null ? new Rectangle(bounds) : new Rectangle(0, 0, ip.getWidth(), ip.getHeight());
+        this.mask = mask != null ? (byte[]) mask.getPixels() : null;
+        rowHashes = new long[ip.getHeight()];
+        counts = new int[hueTable.getHistogramSize()];
+
+        long[] all = count(ip, true, new AtomicBoolean());
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = (int) all[i];
+        }
+    }
+
+    /**
+     * @return copy of the current histogram
+     */
+    public synchronized int[] getCounts() {
+        return counts.clone();
+    }
+
+    /**
+     * @return region the histogram is built from
+     */
+    public Rectangle getBounds() {
+        return new Rectangle(bounds);
+    }
+
+    /**
+     * Takes changes of the pixels into account. The first update counts the whole region again and
+     * remembers the container of every pixel, later updates only the changed rows. Pixels may change
+     * while the counts stay the same, e.g. if the image is darkened or edited outside the region.
+     * @param ip ColorProcessor of the same size as the image the histogram was built from
+     * @return true if any pixel of the image has changed, see getCounts() for the histogram
+     */
+    public synchronized boolean update(ImageProcessor ip) {
+        boolean rebuild = containers == null;
+        if (rebuild) {
+            containers = new short[bounds.width * bounds.height];
+            Arrays.fill(containers, (short) -1);
+        }
+        AtomicBoolean edited = new AtomicBoolean();
+        long[] delta = count(ip, rebuild, edited);
+
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = rebuild ? (int) delta[i] : counts[i] + (int) delta[i];
+        }
+        return edited.get();
+    }
+
+    /**
+     * Counts the changes of the containers of the changed rows, or of all rows. Without remembered
+     * containers, the containers of the pixels are counted.
+     * @param all true => all rows, whether their hash has changed or not
+     * @param edited set if the hash of any row has changed
+     * @return changes of the counts
+     */
+    private long[] count(ImageProcessor ip, final boolean all, final AtomicBoolean edited) {
+        final int[] pixels = (int[]) ip.getPixels();
+        final PixelSource source = new ProcessorPixels(pixels);
+        final int imageWidth = ip.getWidth();
+        final short[] containers = this.containers;
+
+        // the counts of a band are the changes of the containers
+        return pool.invoke(new RowBandHistogram(imageWidth, ip.getHeight(), counts.length) {
+            @Override
+            protected void countBand(int startRow, int endRow, long[] bandDelta) {
+                int[] rowContainers = new int[Math.min(HueTable.CHUNK, bounds.width)];
+                for (int y = startRow; y < endRow; y++) {
+                    long hash = hashRow(pixels, y * imageWidth, imageWidth);
+                    if (hash != rowHashes[y]) {
+                        rowHashes[y] = hash;
+                        edited.set(true);
+                    } else if (!all) {
+                        continue;
+                    }
+
+                    int row = y - bounds.y;
+                    if (row < 0 || row >= bounds.height) {
+                        continue;
+                    }
+                    int imageRow = y * imageWidth + bounds.x;
+                    int regionRow = row * bounds.width;
+                    for (int x = 0; x < bounds.width; x++) {
+                        int chunkX = x % rowContainers.length;
+                        if (chunkX == 0) {
+                            int n = Math.min(rowContainers.length, bounds.width - x);
+                            hueTable.lookup(source, imageRow + x, imageRow + x + n, rowContainers);
+                        }
+                        int k = regionRow + x;
+                        if (mask != null && mask[k] == 0) {
+                            continue;
+                        }
+
+                        int container = rowContainers[chunkX];
+                        if (containers == null) {
+                            bandDelta[container]++;
+                            continue;
+                        }
+                        int old = containers[k];
+                        if (container != old) {
+                            if (old >= 0) {
+                                bandDelta[old]--;
+                            }
+                            bandDelta[container]++;
+                            containers[k] = (short) container;
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return 64 bit hash of the pixels [from, from + length)
+     */
+    private static long hashRow(int[] pixels, int from, int length) {
+        long hash = length;
+        for (int i = from; i < from + length; i++) {
+            hash = (hash ^ pixels[i]) * 0x9e3779b97f4a7c15L;
+            hash ^= hash >>> 29;
+        }
+        return hash;
+    }
+}
+
+/**
+ * Downsized copies of an image for quick previews. Besides the image itself the pyramid contains
+ * levels of 1/64, 1/16 and 1/4 of its width and optionally a level of the preview width, ordered from
+ * the coarsest to the full resolution. A coarse level is left out if it is more than half as wide as
+ * the next finer level, e.g. a level of 500 pixels next to a preview of 640 pixels. Levels are created on
+ * first use or in the background by prepare(), each from the finest level created so far, so the
+ * coarsest level is available without waiting for the levels in between.
+ */
+final class ImagePyramid {
+
+    public static final int MAX_LEVELS = 4;
+
+    /**
+     * levels narrower than this are left out
+     */
+    private static final int MIN_WIDTH = 32;
+
+    private static final int[] COARSE_DIVISORS = {4, 16, 64};
+
+    private final int[] widths;
+    private final AtomicReferenceArray<ImageProcessor> levels;
+    private final int previewLevel;
+
+    /**
+     * @param full image at full resolution
+     * @param previewWidth width of the preview level, 0 => no preview level
+     */
+    public ImagePyramid(ImageProcessor full, int previewWidth) {
+        int fullWidth = full.getWidth();
+        ArrayList<Integer> levelWidths = new ArrayList<Integer>();
+        levelWidths.add(fullWidth);
+
+        if (previewWidth > 0 && previewWidth < fullWidth) {
+            levelWidths.add(previewWidth);
+        }
+        for (int divisor : COARSE_DIVISORS) {
+            int width = fullWidth / divisor;
+            if (width >= MIN_WIDTH && width <= levelWidths.get(levelWidths.size() - 1) / 2) {
+                levelWidths.add(width);
+            }
+        }
+        Collections.sort(levelWidths);
+
+        widths = new int[levelWidths.size()];
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = levelWidths.get(i);
+        }
+
+        levels = new AtomicReferenceArray<ImageProcessor>(widths.length);
+        levels.set(widths.length - 1, full);
+        int preview = previewWidth > 0 ? levelWidths.indexOf(previewWidth) : -1;
+        previewLevel = preview >= 0 ? preview : getFullLevel();
+    }
+
+    /**
+     * Creates all levels in the background, from the finest to the coarsest.
+     * @param pool ForkJoinPool
+     */
+    public void prepare(ForkJoinPool pool) {
+        pool.execute(new Runnable() {
+            public void run() {
+                for (int level = getFullLevel() - 1; level >= 0; level--) {
+                    getLevel(level);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param level index in [0, getFullLevel()], 0 => coarsest
+     * @return downsized image, created from the finest level created so far if necessary
+     */
+    public ImageProcessor getLevel(int level) {
+        ImageProcessor ip = levels.get(level);
+        if (ip != null) {
+            return ip;
+        }
+
+        int finer = level + 1;
+        while (levels.get(finer) == null) {
+            finer++;
+        }
+        // a level created twice at the same time is the same image, the first one is kept
+        levels.compareAndSet(level, null, levels.get(finer).resize(widths[level]));
+        return levels.get(level);
+    }
+
+    /**
+     * @return index of the level used as preview, the full level if there is no preview level
+     */
+    public int getPreviewLevel() {
+        return previewLevel;
+    }
+
+    /**
+     * @return index of the image at full resolution
+     */
+    public int getFullLevel() {
+        return widths.length - 1;
+    }
+
+    /**
+     * Enlarges an image by repeating its pixels (nearest neighbor).
+     * @param ip ColorProcessor to enlarge
+     * @param width new width
+     * @param height new height
+     * @param pool runs the bands
+     * @return enlarged ColorProcessor
+     */
+    public static ImageProcessor enlarge(ImageProcessor ip, int width, int height, ForkJoinPool pool) {
+        return enlarge(ip, new ColorProcessor(width, height), pool);
+    }
+
+    /**
+     * Enlarges an image by repeating its pixels (nearest neighbor).
+     * @param ip ColorProcessor to enlarge
+     * @param ipout ColorProcessor receiving the enlarged image, its size is the new size
+     * @param pool runs the bands
+     * @return ipout
+     */
+    public static ImageProcessor enlarge(ImageProcessor ip, ImageProcessor ipout, ForkJoinPool pool) {
+        final int srcWidth = ip.getWidth(), srcHeight = ip.getHeight();
+        final int width = ipout.getWidth(), height = ipout.getHeight();
+        final int[] src = (int[]) ip.getPixels();
+        final int[] dst = (int[]) ipout.getPixels();
+
+        final int[] columns = new int[width];
+        for (int x = 0; x < width; x++) {
+            columns[x] = (int) ((long) x * srcWidth / width);
+        }
+
+        pool.invoke(new RowBandAction(width, height, null) {
+            @Override
+            protected void processBand(int from, int to) {
+                for (int i = from; i < to; i += width) {
+                    int srcRow = (int) ((long) (i / width) * srcHeight / height) * srcWidth;
+                    for (int x = 0; x < width; x++) {
+                        dst[i + x] = src[srcRow + columns[x]];
+                    }
+                }
+            }
+        });
+        return ipout;
+    }
+}
+
+/**
+ * Keeps the output pixels of previous reductions, so returning to a color level shows the result
+ * without calculating it again. Entries are evicted in least recently used order once their total
+ * size exceeds the byte budget. The cache keeps its own copies of the pixels, so displayed images may
+ * be modified freely. Every clear() starts a new generation; calculations pass the generation they were
+ * started with, so results of the image before a clear() neither enter the cache nor are read from it.
+ */
+final class ReductionCache {
+
+    /**
+     * system property to set the byte budget, 0 disables the cache
+     */
+    public static final String BUDGET_PROPERTY = "color_reducer.cacheBytes";
+
+    private final long budget;
+    private long size = 0;
+    private int generation = 0;
+
+    /**
+     * entries keyed by color level and pyramid level, in access order
+     */
+    private final LinkedHashMap<Integer, int[]> entries = new LinkedHashMap<Integer, int[]>(16, 0.75f, true);
+
+    /**
+     * @param budget max number of bytes the cached pixels may occupy
+     */
+    public ReductionCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * @return budget given by the system property, by default an eighth of the max heap size
+     */
+    public static long defaultBudget() {
+        Long budget = Long.getLong(BUDGET_PROPERTY);
+        return budget != null ? budget : Runtime.getRuntime().maxMemory() / 8;
+    }
+
+    private static Integer key(int colorLevel, int resolution) {
+        return colorLevel * ImagePyramid.MAX_LEVELS + resolution;
+    }
+
+    /**
+     * @return current generation, to pass to the other methods
+     */
+    public synchronized int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @param generation generation of the caller
+     * @param colorLevel number of dominant colors, 0 => desaturation
+     * @param resolution level of the image pyramid
+     * @return true if pixels are cached for the key
+     */
+    public synchronized boolean contains(int generation, int colorLevel, int resolution) {
+        return generation == this.generation && entries.containsKey(key(colorLevel, resolution));
+    }
+
+    /**
+     * Copies the cached pixels into the given array.
+     * @param generation generation of the caller
+     * @param colorLevel number of dominant colors, 0 => desaturation
+     * @param resolution level of the image pyramid
+     * @param pixels array of the size of the cached pixels
+     * @return false if no pixels are cached for the key or the generation is outdated
+     */
+    public synchronized boolean copyTo(int generation, int colorLevel, int resolution, int[] pixels) {
+        int[] cached = generation == this.generation ? entries.get(key(colorLevel, resolution)) : null;
+        if (cached == null) {
+            return false;
+        }
+        System.arraycopy(cached, 0, pixels, 0, cached.length);
+        return true;
+    }
+
+    /**
+     * Stores a copy of the pixels and evicts the least recently used entries exceeding the budget.
+     * The array of an evicted or replaced entry of the same size receives the copy, so a full cache
+     * does not allocate. Pixels of an outdated generation are ignored.
+     * @param generation generation of the caller
+     * @param colorLevel number of dominant colors, 0 => desaturation
+     * @param resolution level of the image pyramid
+     * @param pixels packed rgb pixels
+     */
+    public synchronized void put(int generation, int colorLevel, int resolution, int[] pixels) {
+        long bytes = 4L * pixels.length;
+        if (generation != this.generation || bytes > budget) {
+            return;
+        }
+
+        int[] copy = entries.remove(key(colorLevel, resolution));
+        if (copy != null) {
+            size -= 4L * copy.length;
+        }
+
+        Iterator<int[]> eldest = entries.values().iterator();
+        while (size + bytes > budget) {
+            int[] evicted = eldest.next();
+            size -= 4L * evicted.length;
+            eldest.remove();
+            if (copy == null || copy.length != pixels.length) {
+                copy = evicted;
+            }
+        }
+
+        if (copy == null || copy.length != pixels.length) {
+            copy = new int[pixels.length];
+        }
+        System.arraycopy(pixels, 0, copy, 0, pixels.length);
+        entries.put(key(colorLevel, resolution), copy);
+        size += bytes;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+        generation++;
+    }
+}
+
+/**
+ * Output images which are no longer displayed, kept by their size for the next calculation. Together
+ * with the displayed image they form the buffers of the preview, so moving the slider back and forth
+ * does not allocate new pixel arrays. At most MAX_IDLE images of every size are kept.
+ */
+final class ProcessorPool {
+
+    private static final int MAX_IDLE = 3;
+
+    /**
+     * idle images keyed by width and height
+     */
+    private final LinkedHashMap<Long, List<ImageProcessor>> idle = new LinkedHashMap<Long, List<ImageProcessor>>();
+
+    private static Long key(int width, int height) {
+        return (long) width << 32 | height;
+    }
+
+    /**
+     * @param width image width
+     * @param height image height
+     * @return idle ColorProcessor of the size or a new one, its pixels are undefined
+     */
+    public synchronized ImageProcessor acquire(int width, int height) {
+        List<ImageProcessor> images = idle.get(key(width, height));
+        if (images != null && !images.isEmpty()) {
+            return images.remove(images.size() - 1);
+        }
+        return new ColorProcessor(width, height);
+    }
+
+    /**
+     * Keeps an image for reuse. It must not be displayed or used otherwise afterwards.
+     * @param ip ColorProcessor, may be null
+     */
+    public synchronized void release(ImageProcessor ip) {
+        if (!(ip instanceof ColorProcessor)) {
+            return;
+        }
+
+        Long key = key(ip.getWidth(), ip.getHeight());
+        List<ImageProcessor> images = idle.get(key);
+        if (images == null) {
+            images = new ArrayList<ImageProcessor>(MAX_IDLE);
+            idle.put(key, images);
+        }
+        if (images.size() < MAX_IDLE && !images.contains(ip)) {
+            images.add(ip);
+        }
+    }
+
+    public synchronized void clear() {
+        idle.clear();
+    }
+}
+
+/**
+ * Receives the progress of a calculation and tells it whether to stop early.
+ */
+interface ProgressMonitor {
+    /**
+     * @param percent completed part of the calculation in [0, 100]
+     */
+    void progressChanged(int percent);
+
+    /**
+     * @return true if the remaining work should be skipped
+     */
+    boolean isCancelled();
+}
+
+/**
+ * Processes the rows of an image in parallel. The rows are split in halves until a band covers at most
+ * BAND_PIXELS pixels, then processBand() is called for the pixels of the band. Rows are stored one after
+ * another, so every band is a contiguous range of the pixel array. Once the monitor is cancelled, the
+ * remaining bands are skipped.
+ */
+abstract class RowBandAction extends RecursiveAction {
+
+    public static final int BAND_PIXELS = 1 << 16;
+
+    private final int width;
+    private final int startRow;
+    private final int endRow;
+
+    /**
+     * progress shared by all bands of the image
+     */
+    private final BandProgress progress;
+
+    /**
+     * @param width image width
+     * @param height image height
+     * @param monitor ProgressMonitor informed after every band, may be null
+     */
+    public RowBandAction(int width, int height, ProgressMonitor monitor) {
+        this(width, 0, height, new BandProgress((long) width * height, monitor));
+    }
+
+    private RowBandAction(int width, int startRow, int endRow, BandProgress progress) {
+        this.width = width;
+        this.startRow = startRow;
+        this.endRow = endRow;
+        this.progress = progress;
+    }
+
+    /**
+     * Processes the pixels [from, to) of the pixel array.
+     */
+    protected abstract void processBand(int from, int to);
+
+    @Override
+    protected void compute() {
+        int rows = endRow - startRow;
+
+        if (rows > 1 && (long) rows * width > BAND_PIXELS) {
+            int middleRow = startRow + rows / 2;
+            invokeAll(new Band(startRow, middleRow), new Band(middleRow, endRow));
+            return;
+        }
+
+        if (progress.isCancelled()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        long startBytes = ReductionMetrics.threadAllocatedBytes();
+        processBand(startRow * width, endRow * width);
+        ReductionMetrics.addWork(progress.measurement, start, startBytes);
+        progress.completed((long) rows * width);
+    }
+
+    /**
+     * Part of the image which delegates to the processBand() of the action it was split from.
+     */
+    private final class Band extends RowBandAction {
+        Band(int startRow, int endRow) {
+            super(width, startRow, endRow, progress);
+        }
+
+        @Override
+        protected void processBand(int from, int to) {
+            RowBandAction.this.processBand(from, to);
+        }
+    }
+
+    /**
+     * Counts processed pixels and informs the monitor whenever another percent is done.
+     */
+    private static final class BandProgress {
+        private final long total;
+        private final ProgressMonitor monitor;
+        private final ReductionMetrics.Measurement measurement = ReductionMetrics.current();
+        private final AtomicLong done = new AtomicLong();
+        private final AtomicInteger reported = new AtomicInteger();
+
+        BandProgress(long total, ProgressMonitor monitor) {
+            this.total = total;
+            this.monitor = monitor;
+        }
+
+        boolean isCancelled() {
+            return monitor != null && monitor.isCancelled();
+        }
+
+        void completed(long pixels) {
+            if (monitor == null) {
+                return;
+            }
+
+            int percent = (int) (done.addAndGet(pixels) * 100 / total);
+            int last = reported.get();
+            if (percent > last && reported.compareAndSet(last, percent)) {
+                monitor.progressChanged(percent);
+            }
+        }
+    }
+}
+
+/**
+ * Counts the pixels of an image into an array in parallel, e.g. into a histogram. The rows are split in
+ * halves like in RowBandAction, every band counts into an array of its own and the arrays of both halves
+ * are merged when they are done, so the bands never wait for each other. Bands cover at least
+ * RowBandAction.BAND_PIXELS pixels and there are at most BANDS_PER_WORKER bands per worker thread, so
+ * large arrays of counts are not allocated for every small band.
+ */
+abstract class RowBandHistogram extends RecursiveTask<long[]> {
+
+    private static final int BANDS_PER_WORKER = 4;
+
+    /**
+     * pixels per row, a row may also be a row of cells of the image
+     */
+    private final int width;
+    private final int startRow;
+    private final int endRow;
+
+    /**
+     * length of the array of counts
+     */
+    private final int size;
+
+    /**
+     * bands covering more pixels are split, 0 => not decided yet
+     */
+    private final long bandPixels;
+
+    /**
+     * measurement of the thread which created the task, the work of all bands is added to it
+     */
+    private final ReductionMetrics.Measurement measurement;
+
+    /**
+     * @param width pixels per row
+     * @param height number of rows
+     * @param size length of the array of counts
+     */
+    public RowBandHistogram(int width, int height, int size) {
+        this(width, 0, height, size, 0, ReductionMetrics.current());
+    }
+
+    private RowBandHistogram(int width, int startRow, int endRow, int size, long bandPixels,
+            ReductionMetrics.Measurement measurement) {
+        this.width = width;
+        this.startRow = startRow;
+        this.endRow = endRow;
+        this.size = size;
+        this.bandPixels = bandPixels;
+        this.measurement = measurement;
+    }
+
+    /**
+     * Adds the pixels of the rows [startRow, endRow) to the counts.
+     */
+    protected abstract void countBand(int startRow, int endRow, long[] counts);
+
+    @Override
+    protected long[] compute() {
+        int rows = endRow - startRow;
+        long limit = bandPixels > 0 ? bandPixels : Math.max(RowBandAction.BAND_PIXELS,
+                (long) rows * width / (BANDS_PER_WORKER * getPool().getParallelism()));
+
+        if (rows > 1 && (long) rows * width > limit) {
+            int middleRow = startRow + rows / 2;
+
+            Band upperBand = new Band(startRow, middleRow, limit);
+            upperBand.fork();
+            long[] lowerCounts = new Band(middleRow, endRow, limit).compute();
+            long[] merged = upperBand.join();
+
+            for (int i = 0; i < merged.length; i++) {
+                merged[i] += lowerCounts[i];
+            }
+            return merged;
+        }
+
+        long start = System.nanoTime();
+        long startBytes = ReductionMetrics.threadAllocatedBytes();
+        long[] counts = new long[size];
+        countBand(startRow, endRow, counts);
+        ReductionMetrics.addWork(measurement, start, startBytes);
+        return counts;
+    }
+
+    /**
+     * Part of the rows which delegates to the countBand() of the task it was split from.
+     */
+    private final class Band extends RowBandHistogram {
+        Band(int startRow, int endRow, long bandPixels) {
+            super(width, startRow, endRow, size, bandPixels, measurement);
+        }
+
+        @Override
+        protected void countBand(int startRow, int endRow, long[] counts) {
+            RowBandHistogram.this.countBand(startRow, endRow, counts);
+        }
+    }
+}
+
+/**
+ * Lookup table which maps every 24 bit rgb color to its hue histogram container. The table is built
+ * lazily on first use and is shared by all plugin runs, so batch jobs pay the build cost only once.
+ *
+ * The system property <b>color_reducer.hueTable</b> selects the table:
+ * <ul>
+ * <li>full: one entry for each of the 16.7M colors (32 MB), exact (default)</li>
+ * <li>quantized: colors are quantized to 5-6-5 bit before the lookup (128 KB), approximate</li>
+ * <li>none: no table, hues are calculated per pixel</li>
+ * </ul>
+ * If there is not enough memory for the full table, the quantized table is used instead.
+ */
+final class HueTable {
+
+    public static final String MODE_PROPERTY = "color_reducer.hueTable";
+    public static final String MODE_FULL = "full";
+    public static final String MODE_QUANTIZED = "quantized";
+    public static final String MODE_NONE = "none";
+
+    /**
+     * number of pixels looked up at a time, see lookup(PixelSource, int, int, int[])
+     */
+    public static final int CHUNK = 1 << 12;
+
+    private static final int FULL_SIZE = 1 << 24;
+    private static final int QUANTIZED_SIZE = 1 << 16;
+
+    /**
+     * tables per histogram size, e.g. for the benchmark comparing several sizes; softly referenced, so
+     * tables no longer used may be collected when memory runs short
+     */
+    private static final Map<Integer, SoftReference<HueTable>> instances = new HashMap<Integer, SoftReference<HueTable>>();
+
+    /**
+     * number of histogram containers the table maps to
+     */
+    private final int histogramSize;
+
+    /**
+     * histogram container per color, null if hues are calculated per pixel
+     */
+    private final short[] table;
+
+    /**
+     * true => table is indexed by 5-6-5 bit colors
+     */
+    private final boolean quantized;
+
+    /**
+     * calculates the hues of the table, or of every pixel if there is no table
+     */
+    private final HueKernel kernel;
+
+    private HueTable(int histogramSize, short[] table, boolean quantized, HueKernel kernel) {
+        this.histogramSize = histogramSize;
+        this.table = table;
+        this.quantized = quantized;
+        this.kernel = kernel;
+    }
+
+    /**
+     * Returns the shared table for the given histogram size, building it if necessary.
+     * @param histogramSize number of histogram containers
+     * @param pool builds the table if it is not shared yet
+     * @return HueTable
+     */
+    public static synchronized HueTable getInstance(int histogramSize, ForkJoinPool pool) {
+        SoftReference<HueTable> reference = instances.get(histogramSize);
+        HueTable table = reference != null ? reference.get() : null;
+        if (table == null) {
+            table = create(histogramSize, System.getProperty(MODE_PROPERTY, MODE_FULL), pool);
+            instances.put(histogramSize, new SoftReference<HueTable>(table));
+        }
+        return table;
+    }
+
+    private static HueTable create(int histogramSize, String mode, ForkJoinPool pool) {
+        HueKernel kernel = HueKernel.getInstance();
+        if (MODE_NONE.equalsIgnoreCase(mode)) {
+            return new HueTable(histogramSize, null, false, kernel);
+        }
+
+        if (!MODE_QUANTIZED.equalsIgnoreCase(mode) && hasRoomFor(FULL_SIZE)) {
+            try {
+                return new HueTable(histogramSize, build(histogramSize, false, kernel, pool), false, kernel);
+            } catch (OutOfMemoryError e) {
+                // fall through to the quantized table
+            }
+        }
+        return new HueTable(histogramSize, build(histogramSize, true, kernel, pool), true, kernel);
+    }
+
+    /**
+     * Checks whether a table of the given size would leave at least three quarters of the heap for the images.
+     */
+    private static boolean hasRoomFor(int entries) {
+        return 2L * entries * 4 <= Runtime.getRuntime().maxMemory();
+    }
+
+    private static short[] build(final int histogramSize, final boolean quantized, final HueKernel kernel,
+            ForkJoinPool pool) {
+        final short[] table = new short[quantized ? QUANTIZED_SIZE : FULL_SIZE];
+        final int blockSize = 1 << 16;
+
+        // every block covers 2^16 consecutive table entries
+        class BuildBlock extends RecursiveAction {
+            private final int firstBlock;
+            private final int lastBlock;
+
+            BuildBlock(int firstBlock, int lastBlock) {
+                this.firstBlock = firstBlock;
+                this.lastBlock = lastBlock;
+            }
+
+            @Override
+            protected void compute() {
+                if (lastBlock - firstBlock > 1) {
+                    int middle = (firstBlock + lastBlock) / 2;
+                    invokeAll(new BuildBlock(firstBlock, middle), new BuildBlock(middle, lastBlock));
+                    return;
+                }
+
+                // the kernel takes a chunk of colors at a time
+                int[] colors = new int[CHUNK];
+                int[] containers = new int[CHUNK];
+                for (int first = firstBlock * blockSize, end = lastBlock * blockSize; first < end; first += CHUNK) {
+                    for (int k = 0; k < CHUNK; k++) {
+                        colors[k] = quantized ? dequantize(first + k) : first + k;
+                    }
+                    kernel.hueIndices(colors, 0, CHUNK, histogramSize, containers);
+                    for (int k = 0; k < CHUNK; k++) {
+                        table[first + k] = (short) containers[k];
+                    }
+                }
+            }
+        }
+
+        pool.invoke(new BuildBlock(0, table.length / blockSize));
+        return table;
+    }
+
+    /**
+     * @return 5-6-5 bit index of a packed rgb color
+     */
+    private static int quantize(int rgb) {
+        return ((rgb & 0xf80000) >> 8) | ((rgb & 0xfc00) >> 5) | ((rgb & 0xf8) >> 3);
+    }
+
+    /**
+     * @return packed rgb color at the center of a 5-6-5 bit cell
+     */
+    private static int dequantize(int index) {
+        int r = ((index >> 11) << 3) | 4;
+        int g = (((index >> 5) & 0x3f) << 2) | 2;
+        int b = ((index & 0x1f) << 3) | 4;
+        return (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * @param rgb packed rgb pixel
+     * @return histogram container of the pixel's hue
+     */
+    public int lookup(int rgb) {
+        if (table == null) {
+            return kernel.hueIndex(rgb, histogramSize);
+        }
+        return table[quantized ? quantize(rgb) : rgb & 0xffffff];
+    }
+
+    /**
+     * Looks up the containers of the pixels [from, to). Without a table the pixels are handed to the
+     * kernel at once, so the vector kernel calculates them a lane group at a time.
+     * @param src packed rgb pixels
+     * @param from first pixel
+     * @param to pixel after the last pixel, at most CHUNK pixels after from
+     * @param containers receives the container of pixel from + k at index k
+     */
+    public void lookup(PixelSource src, int from, int to, int[] containers) {
+        int n = to - from;
+        if (table == null) {
+            for (int k = 0; k < n; k++) {
+                containers[k] = src.get(from + k);
+            }
+            kernel.hueIndices(containers, 0, n, histogramSize, containers);
+            return;
+        }
+        for (int k = 0; k < n; k++) {
+            containers[k] = lookup(src.get(from + k));
+        }
+    }
+
+    /**
+     * @return true if lookups are exact
+     */
+    public boolean isExact() {
+        return !quantized;
+    }
+
+    public int getHistogramSize() {
+        return histogramSize;
+    }
+}
+
+/**
+ * Calculates the hue histogram containers of packed rgb pixels. There are two kernels with identical results:
+ * <ul>
+ * <li>scalar: Color_Reducer.hueIndex() per pixel</li>
+ * <li>vector: HueVectorKernel, which calculates a lane group of pixels at a time with the incubating
+ * Vector API (default if available)</li>
+ * </ul>
+ * The vector kernel is a source file of its own and needs --add-modules jdk.incubator.vector at compile
+ * and run time. It is loaded by name, so the plugin still compiles and runs without it. The system
+ * property <b>color_reducer.hueKernel</b>=scalar selects the scalar kernel.
+ */
+abstract class HueKernel {
+
+    public static final String PROPERTY = "color_reducer.hueKernel";
+    public static final String SCALAR = "scalar";
+    public static final String VECTOR = "vector";
+
+    private static final HueKernel instance = select();
+
+    /**
+     * @return the selected kernel, the scalar kernel if the vector kernel is not available
+     */
+    public static HueKernel getInstance() {
+        return instance;
+    }
+
+    private static HueKernel select() {
+        if (!SCALAR.equalsIgnoreCase(System.getProperty(PROPERTY, VECTOR))) {
+            HueKernel vector = loadVector();
+            if (vector != null) {
+                return vector;
+            }
+        }
+        return new Scalar();
+    }
+
+    /**
+     * @return the vector kernel, null if it was not compiled, the JVM runs without jdk.incubator.vector
+     * or has no SIMD registers for doubles
+     */
+    static HueKernel loadVector() {
+        try {
+            Class<?> vector = Class.forName("HueVectorKernel");
+            if ((Boolean) vector.getDeclaredMethod("isSupported").invoke(null)) {
+                return (HueKernel) vector.getDeclaredConstructor().newInstance();
+            }
+        } catch (ReflectiveOperationException e) {
+            // not compiled
+        } catch (LinkageError e) {
+            // the JVM runs without jdk.incubator.vector
+        }
+        return null;
+    }
+
+    /**
+     * @param rgb packed rgb pixel
+     * @param histogramSize number of histogram containers
+     * @return histogram container of the pixel's hue
+     */
+    public abstract int hueIndex(int rgb, int histogramSize);
+
+    /**
+     * Calculates the containers of the pixels [from, to).
+     * @param rgb packed rgb pixels
+     * @param from first pixel
+     * @param to pixel after the last pixel
+     * @param histogramSize number of histogram containers
+     * @param containers receives the container of every pixel at the pixel's index, may be rgb
+     */
+    public void hueIndices(int[] rgb, int from, int to, int histogramSize, int[] containers) {
+        for (int i = from; i < to; i++) {
+            containers[i] = hueIndex(rgb[i], histogramSize);
+        }
+    }
+
+    static final class Scalar extends HueKernel {
+        @Override
+        public int hueIndex(int rgb, int histogramSize) {
+            return Color_Reducer.hueIndex(rgb, histogramSize);
+        }
+    }
+}
+
+/**
+ * Maps every hue histogram container to the container it is replaced with during color reduction.
+ * Everything the hsv -> rgb conversion needs from the new hue is calculated up front, so applying
+ * the remap only has to derive saturation and value of each pixel.
+ */
+final class HueRemap {
+
+    /**
+     * replacement container per container
+     */
+    private final int[] targets;
+
+    /**
+     * sector of the color wheel (0..5) per container
+     */
+    private final int[] sectors;
+
+    /**
+     * position of the new hue within its sector per container
+     */
+    private final double[] fractions;
+
+    /**
+     * @param targets replacement container per histogram container
+     */
+    public HueRemap(int[] targets) {
+        this.targets = targets;
+        sectors = new int[targets.length];
+        fractions = new double[targets.length];
+
+        for (int i = 0; i < targets.length; i++) {
+            double h = targets[i] / (double) targets.length * 360f;
+            sectors[i] = (int) Math.floor(h / 60);
+            fractions[i] = h / 60 - sectors[i];
+        }
+    }
+
+    /**
+     * @param index histogram container
+     * @return container the hue is replaced with
+     */
+    public int getTarget(int index) {
+        return targets[index];
+    }
+
+    public int size() {
+        return targets.length;
+    }
+
+    /**
+     * Replaces the hue of the pixels in [from, to) and keeps their saturation, value and alpha. The result
+     * equals rgb2hsv -> replace hue -> hsv2rgb.
+     * @param src input pixels
+     * @param dst output pixels, may be src
+     * @param from first pixel
+     * @param to pixel after the last pixel
+     * @param hueTable lookup of histogram containers, must match the size of the remap
+     * @see Color_Reducer#hsv2rgb(double, double, double)
+     */
+    public void apply(PixelSource src, PixelSink dst, int from, int to, HueTable hueTable) {
+        int[] containers = new int[Math.min(HueTable.CHUNK, to - from)];
+        for (int first = from; first < to; first += containers.length) {
+            int n = Math.min(containers.length, to - first);
+            hueTable.lookup(src, first, first + n, containers);
+            for (int k = 0; k < n; k++) {
+                apply(src, dst, first + k, containers[k]);
+            }
+        }
+    }
+
+    /**
+     * Replaces the hue of pixel i with the target of its container.
+     */
+    private void apply(PixelSource src, PixelSink dst, int i, int index) {
+        int c = src.get(i);
+
+        int r8 = (c & 0xff0000) >> 16, g8 = (c & 0xff00) >> 8, b8 = c & 0xff;
+        int max8 = r8 > g8 ? (r8 > b8 ? r8 : b8) : (g8 > b8 ? g8 : b8);
+        int min8 = r8 < g8 ? (r8 < b8 ? r8 : b8) : (g8 < b8 ? g8 : b8);
+
+        double v = max8 / 255f;
+        double s = (v - min8 / 255f) / v;
+        double f = fractions[index];
+
+        double p = v * (1 - s);
+        double q = v * (1 - s * f);
+        double t = v * (1 - s * (1 - f));
+
+        double r, g, b;
+
+        switch (sectors[index]) {
+            case 0:
+                r = v; g = t; b = p;
+                break;
+            case 1:
+                r = q; g = v; b = p;
+                break;
+            case 2:
+                r = p; g = v; b = t;
+                break;
+            case 3:
+                r = p; g = q; b = v;
+                break;
+            case 4:
+                r = t; g = p; b = v;
+                break;
+            default: //case 5:
+                r = v; g = p; b = q;
+                break;
+        }
+
+        dst.set(i, (c & 0xff000000) | ((int) (r * Color_Reducer.RGB_SAMPLE_MAX) << 16)
+                | ((int) (g * Color_Reducer.RGB_SAMPLE_MAX) << 8) | (int) (b * Color_Reducer.RGB_SAMPLE_MAX));
+    }
+}
+
+/**
+ * Palette of at most 256 colors for a reduced image. The hue is reduced to the dominant intervals by
+ * a HueRemap, in addition saturation and value are quantized into a few levels per dominant interval.
+ * The levels split the saturations and values of the interval's pixels into groups of about the same
+ * number of pixels, each level is the mean of its group. With the palette as LUT the reduced image is
+ * stored as an 8 bit indexed image.
+ */
+final class HuePalette {
+
+    public static final int MAX_COLORS = 256;
+
+    /**
+     * saturation and value are quantized to 8 bit samples before they are divided into levels
+     */
+    private static final int SAMPLES = Color_Reducer.RGB_SAMPLE_MAX + 1;
+
+    private final HueTable hueTable;
+
+    /**
+     * dominant interval (group of palette entries) per histogram container
+     */
+    private final int[] groupOfContainer;
+
+    private final int saturationLevels;
+    private final int valueLevels;
+
+    /**
+     * level per group and saturation sample, and per group and value sample
+     */
+    private final int[][] saturationLevel;
+    private final int[][] valueLevel;
+
+    /**
+     * packed rgb pixel per palette entry
+     */
+    private final int[] colors;
+
+    private HuePalette(HueTable hueTable, int[] groupOfContainer, int saturationLevels, int valueLevels,
+            int[][] saturationLevel, int[][] valueLevel, int[] colors) {
+        this.hueTable = hueTable;
+        this.groupOfContainer = groupOfContainer;
+        this.saturationLevels = saturationLevels;
+        this.valueLevels = valueLevels;
+        this.saturationLevel = saturationLevel;
+        this.valueLevel = valueLevel;
+        this.colors = colors;
+    }
+
+    /**
+     * Finds the levels of saturation and value of every dominant interval in the image.
+     * @param src PixelSource of the image
+     * @param width image width
+     * @param height image height
+     * @param remap HueRemap to the dominant intervals, at most MAX_COLORS different targets
+     * @param hueTable lookup of histogram containers, must match the size of the remap
+     * @param pool ForkJoinPool counting the bands
+     * @return palette of the image
+     */
+    public static HuePalette build(final PixelSource src, final int width, int height, HueRemap remap,
+            final HueTable hueTable, ForkJoinPool pool) {
+        int n = remap.size();
+        final int[] groupOfContainer = new int[n];
+        int[] groupOfTarget = new int[n];
+        int[] targets = new int[n];
+        Arrays.fill(groupOfTarget, -1);
+
+        int groups = 0;
+        for (int index = 0; index < n; index++) {
+            int target = remap.getTarget(index);
+            if (groupOfTarget[target] < 0) {
+                targets[groups] = target;
+                groupOfTarget[target] = groups++;
+            }
+            groupOfContainer[index] = groupOfTarget[target];
+        }
+        if (groups > MAX_COLORS) {
+            throw new IllegalArgumentException("a palette holds at most " + MAX_COLORS + " colors, not " + groups);
+        }
+
+        // the value is split more finely, it matters more to the eye
+        int perGroup = MAX_COLORS / groups;
+        int valueLevels = Math.min(perGroup, (int) Math.ceil(Math.sqrt(perGroup)));
+        int saturationLevels = perGroup / valueLevels;
+
+        // saturation and value samples per group, counted in bands on the worker pool
+        final int valueOffset = groups * SAMPLES;
+        long[] counts = pool.invoke(new RowBandHistogram(width, height, groups * SAMPLES * 2) {
+            @Override
+            protected void countBand(int startRow, int endRow, long[] counts) {
+                for (int i = startRow * width, end = endRow * width; i < end; i++) {
+                    int c = src.get(i);
+                    int group = groupOfContainer[hueTable.lookup(c)];
+                    counts[group * SAMPLES + saturation(c)]++;
+                    counts[valueOffset + group * SAMPLES + value(c)]++;
+                }
+            }
+        });
+
+        int[][] saturationLevel = new int[groups][];
+        int[][] valueLevel = new int[groups][];
+        int[] colors = new int[groups * saturationLevels * valueLevels];
+
+        for (int group = 0; group < groups; group++) {
+            double[] saturations = new double[saturationLevels];
+            double[] values = new double[valueLevels];
+            saturationLevel[group] = quantize(counts, group * SAMPLES, saturationLevels, saturations);
+            valueLevel[group] = quantize(counts, valueOffset + group * SAMPLES, valueLevels, values);
+
+            double hue = targets[group] / (double) n * 360f;
+            for (int si = 0; si < saturationLevels; si++) {
+                for (int vi = 0; vi < valueLevels; vi++) {
+                    colors[(group * saturationLevels + si) * valueLevels + vi] = Color_Reducer.hsv2rgb(hue,
+                            saturations[si] / Color_Reducer.RGB_SAMPLE_MAX, values[vi] / Color_Reducer.RGB_SAMPLE_MAX);
+                }
+            }
+        }
+        return new HuePalette(hueTable, groupOfContainer, saturationLevels, valueLevels, saturationLevel, valueLevel, colors);
+    }
+
+    /**
+     * Divides the samples into levels of about the same number of pixels.
+     * @param counts pixels per sample, SAMPLES entries starting at offset
+     * @param levels number of levels
+     * @param means receives the mean sample of every level
+     * @return level per sample
+     */
+    private static int[] quantize(long[] counts, int offset, int levels, double[] means) {
+        long total = 0;
+        for (int x = 0; x < SAMPLES; x++) {
+            total += counts[offset + x];
+        }
+
+        int[] levelOf = new int[SAMPLES];
+        long[] sums = new long[levels];
+        long[] pixels = new long[levels];
+        long below = 0;
+
+        for (int x = 0; x < SAMPLES; x++) {
+            long count = counts[offset + x];
+            // the sample goes to the level its median pixel falls into
+            int level = total > 0 ? (int) Math.min(levels - 1, (below + count / 2) * levels / total) : 0;
+            levelOf[x] = level;
+            sums[level] += count * x;
+            pixels[level] += count;
+            below += count;
+        }
+
+        for (int level = 0; level < levels; level++) {
+            means[level] = pixels[level] > 0 ? sums[level] / (double) pixels[level]
+                    : (level + 0.5) * Color_Reducer.RGB_SAMPLE_MAX / levels;
+        }
+        return levelOf;
+    }
+
+    /**
+     * @return saturation of a packed rgb pixel in [0, 255]
+     */
+    private static int saturation(int c) {
+        int max = value(c);
+        int r = (c >> 16) & 0xff, g = (c >> 8) & 0xff, b = c & 0xff;
+        int min = r < g ? (r < b ? r : b) : (g < b ? g : b);
+        return max == 0 ? 0 : (max - min) * Color_Reducer.RGB_SAMPLE_MAX / max;
+    }
+
+    /**
+     * @return value max(r, g, b) of a packed rgb pixel
+     */
+    private static int value(int c) {
+        int r = (c >> 16) & 0xff, g = (c >> 8) & 0xff, b = c & 0xff;
+        return r > g ? (r > b ? r : b) : (g > b ? g : b);
+    }
+
+    /**
+     * @param c packed rgb pixel
+     * @return palette entry of the pixel
+     */
+    public int indexOf(int c) {
+        int group = groupOfContainer[hueTable.lookup(c)];
+        return (group * saturationLevels + saturationLevel[group][saturation(c)]) * valueLevels
+                + valueLevel[group][value(c)];
+    }
+
+    /**
+     * @return number of palette entries
+     */
+    public int size() {
+        return colors.length;
+    }
+
+    /**
+     * @param index palette entry
+     * @return packed rgb pixel
+     */
+    public int getColor(int index) {
+        return colors[index];
+    }
+
+    /**
+     * Replaces every pixel by its palette color, e.g. for a preview in rgb.
+     * @param src PixelSource of the input image
+     * @param dst PixelSink of the output image of the same size, may be the input
+     * @param width image width
+     * @param height image height
+     * @param pool ForkJoinPool processing the bands
+     * @param monitor ProgressMonitor informed after every band, may be null
+     */
+    public void apply(final PixelSource src, final PixelSink dst, int width, int height, ForkJoinPool pool,
+            ProgressMonitor monitor) {
+        pool.invoke(new RowBandAction(width, height, monitor) {
+            @Override
+            protected void processBand(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    dst.set(i, colors[indexOf(src.get(i))]);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param src PixelSource of the input image
+     * @param width image width
+     * @param height image height
+     * @param pool ForkJoinPool processing the bands
+     * @param monitor ProgressMonitor informed after every band, may be null
+     * @return 8 bit image of palette entries with the palette as LUT
+     */
+    public ImageProcessor toByteProcessor(final PixelSource src, int width, int height, ForkJoinPool pool,
+            ProgressMonitor monitor) {
+        final byte[] dst = new byte[width * height];
+
+        pool.invoke(new RowBandAction(width, height, monitor) {
+            @Override
+            protected void processBand(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    dst[i] = (byte) indexOf(src.get(i));
+                }
+            }
+        });
+        return new ByteProcessor(width, height, dst, getColorModel());
+    }
+
+    /**
+     * @return LUT of the palette, unused entries are black
+     */
+    public IndexColorModel getColorModel() {
+        byte[] reds = new byte[MAX_COLORS], greens = new byte[MAX_COLORS], blues = new byte[MAX_COLORS];
+        for (int i = 0; i < colors.length; i++) {
+            reds[i] = (byte) (colors[i] >> 16);
+            greens[i] = (byte) (colors[i] >> 8);
+            blues[i] = (byte) colors[i];
+        }
+        return new IndexColorModel(8, MAX_COLORS, reds, greens, blues);
+    }
+}
+
+/**
+ * Converts rgb pixels to grey in bands of rows on the worker pool. The grey of a pixel is taken from
+ * tables built once per model. The system property <b>color_reducer.grey</b> selects the model:
+ * <ul>
+ * <li>value: the HSV value max(r, g, b), the same grey as RGB -> HSV -> RGB with zero saturation (default)</li>
+ * <li>rec601: luma 0.299 r + 0.587 g + 0.114 b</li>
+ * <li>rec709: luma 0.2126 r + 0.7152 g + 0.0722 b</li>
+ * </ul>
+ */
+final class Desaturator {
+
+    public static final String MODEL_PROPERTY = "color_reducer.grey";
+    public static final String VALUE = "value";
+    public static final String REC601 = "rec601";
+    public static final String REC709 = "rec709";
+
+    /**
+     * fixed point precision of the luma tables
+     */
+    private static final int FRACTION_BITS = 16;
+
+    /**
+     * grey per max sample, null for luma models
+     */
+    private final int[] values;
+
+    /**
+     * weighted samples per channel in fixed point, null for the value model
+     */
+    private final int[] reds;
+    private final int[] greens;
+    private final int[] blues;
+
+    private Desaturator(int[] values, int[] reds, int[] greens, int[] blues) {
+        this.values = values;
+        this.reds = reds;
+        this.greens = greens;
+        this.blues = blues;
+    }
+
+    /**
+     * @return Desaturator of the model selected by the system property
+     */
+    public static Desaturator getDefault() {
+        return getInstance(System.getProperty(MODEL_PROPERTY, VALUE));
+    }
+
+    /**
+     * @param model VALUE, REC601 or REC709
+     * @return Desaturator of the given model
+     */
+    public static Desaturator getInstance(String model) {
+        if (REC601.equalsIgnoreCase(model)) {
+            return luma(0.299, 0.587, 0.114);
+        } else if (REC709.equalsIgnoreCase(model)) {
+            return luma(0.2126, 0.7152, 0.0722);
+        } else if (!VALUE.equalsIgnoreCase(model)) {
+            throw new IllegalArgumentException("unknown grey model: " + model);
+        }
+
+        int[] values = new int[Color_Reducer.RGB_SAMPLE_MAX + 1];
+        for (int i = 0; i < values.length; i++) {
+            // same rounding as rgb2hsv() -> hsv2rgb()
+            values[i] = (int) ((double) (i / 255f) * Color_Reducer.RGB_SAMPLE_MAX);
+        }
+        return new Desaturator(values, null, null, null);
+    }
+
+    private static Desaturator luma(double red, double green, double blue) {
+        int[] reds = new int[Color_Reducer.RGB_SAMPLE_MAX + 1];
+        int[] greens = new int[reds.length];
+        int[] blues = new int[reds.length];
+
+        for (int i = 0; i < reds.length; i++) {
+            // the rounding offset is added to the red table once
+            reds[i] = (int) Math.round(red * i * (1 << FRACTION_BITS)) + (1 << (FRACTION_BITS - 1));
+            greens[i] = (int) Math.round(green * i * (1 << FRACTION_BITS));
+            blues[i] = (int) Math.round(blue * i * (1 << FRACTION_BITS));
+        }
+        return new Desaturator(null, reds, greens, blues);
+    }
+
+    /**
+     * @param rgb packed rgb pixel
+     * @return grey in [0, 255]
+     */
+    public int grey(int rgb) {
+        int r = (rgb >> 16) & 0xff, g = (rgb >> 8) & 0xff, b = rgb & 0xff;
+
+        if (values != null) {
+            return values[r > g ? (r > b ? r : b) : (g > b ? g : b)];
+        }
+        return Math.min((reds[r] + greens[g] + blues[b]) >> FRACTION_BITS, Color_Reducer.RGB_SAMPLE_MAX);
+    }
+
+    /**
+     * @param rgb packed rgb pixel
+     * @return packed rgb pixel of the grey, with the alpha of the given pixel
+     */
+    public int desaturate(int rgb) {
+        int grey = grey(rgb);
+        return (rgb & 0xff000000) | grey << 16 | grey << 8 | grey;
+    }
+
+    /**
+     * @param src PixelSource of the input image
+     * @param dst PixelSink of the output image of the same size, may be the input
+     * @param width image width
+     * @param height image height
+     * @param pool ForkJoinPool processing the bands
+     * @param monitor ProgressMonitor informed after every band, may be null
+     */
+    public void desaturate(final PixelSource src, final PixelSink dst, int width, int height, ForkJoinPool pool,
+            ProgressMonitor monitor) {
+        pool.invoke(new RowBandAction(width, height, monitor) {
+            @Override
+            protected void processBand(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    dst.set(i, desaturate(src.get(i)));
+                }
+            }
+        });
+    }
+
+    /**
+     * @param ipin ColorProcessor input image
+     * @param pool ForkJoinPool processing the bands
+     * @param monitor ProgressMonitor informed after every band, may be null
+     * @return grey ColorProcessor
+     */
+    public ImageProcessor toColorProcessor(ImageProcessor ipin, ForkJoinPool pool, ProgressMonitor monitor) {
+        int width = ipin.getWidth(), height = ipin.getHeight();
+        ImageProcessor ipout = new ColorProcessor(width, height);
+
+        desaturate(new ProcessorPixels(ipin), new ProcessorPixels(ipout), width, height, pool, monitor);
+        return ipout;
+    }
+
+    /**
+     * Desaturates into an 8 bit image, a quarter of the memory of a ColorProcessor.
+     * @param ipin ColorProcessor input image
+     * @param pool ForkJoinPool processing the bands
+     * @param monitor ProgressMonitor informed after every band, may be null
+     * @return ByteProcessor
+     */
+    public ImageProcessor toByteProcessor(ImageProcessor ipin, ForkJoinPool pool, ProgressMonitor monitor) {
+        int width = ipin.getWidth(), height = ipin.getHeight();
+        final int[] src = (int[]) ipin.getPixels();
+        final byte[] dst = new byte[width * height];
+
+        pool.invoke(new RowBandAction(width, height, monitor) {
+            @Override
+            protected void processBand(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    dst[i] = (byte) grey(src[i]);
+                }
+            }
+        });
+        return new ByteProcessor(width, height, dst);
+    }
+}
+
+/**
+ * Reduces all slices of a stack or hyperstack. With a global histogram all slices share the color
+ * intervals of the whole stack, so colors stay consistent over time, otherwise every slice is reduced
+ * with the intervals of its own histogram. In sequence mode, meant for videos and time-lapses, only
+ * slices whose hues differ noticeably from the previous key slice are analyzed; the slices in between
+ * reuse the intervals of their key slice. Slices are processed in parallel, but at most inFlight slices
+ * are read at a time, which keeps virtual stacks of thousands of slices out of memory. A sequence is
+ * reduced in a single pass in slice order: inFlight threads read ahead and sample the slices, and every
+ * slice is compared, analyzed if needed and reduced as soon as it is its turn, so each slice is read once.
+ */
+final class StackReducer {
+
+    public static final int HISTOGRAM_GLOBAL = 0;
+    public static final int HISTOGRAM_PER_SLICE = 1;
+    public static final int HISTOGRAM_SEQUENCE = 2;
+
+    /**
+     * max distance of the sampled histograms of slices sharing their color intervals, in [0, 1]
+     */
+    public static final double SEQUENCE_THRESHOLD_DEFAULT = 0.05;
+
+    /**
+     * in sequence mode one pixel of every cell of this size is sampled to compare slices
+     */
+    private static final int SIGNATURE_CELL_SIZE = 4;
+
+    /**
+     * number of containers of the compared histograms, coarse enough to ignore the noise of the sample
+     */
+    private static final int SIGNATURE_SIZE = 36;
+
+    private final ColorReducerEngine engine;
+    private final ImageStack stack;
+    private final int histogramMode;
+    private final double threshold;
+    private final int inFlight;
+
+    /**
+     * called for every slice of the stack, from several threads at a time
+     */
+    private interface SliceAction {
+        void process(int n, ImageProcessor ip);
+    }
+
+    /**
+     * slice of a sequence read ahead together with its signature
+     */
+    private static final class SampledSlice {
+        final ImageProcessor ip;
+        final double[] signature;
+
+        SampledSlice(ImageProcessor ip, double[] signature) {
+            this.ip = ip;
+            this.signature = signature;
+        }
+    }
+
+    /**
+     * Decides which slices of a sequence are key slices. The first slice is a key slice, every following
+     * slice whose signature is farther than the threshold from the one of the last key slice becomes the
+     * next key slice. Comparing with the key slice instead of the previous slice keeps slow drifts from
+     * accumulating.
+     */
+    static final class KeySelector {
+        private final double threshold;
+        private double[] key;
+
+        KeySelector(double threshold) {
+            this.threshold = threshold;
+        }
+
+        /**
+         * @param signature signature of the next slice of the sequence
+         * @return true if the slice is a new key slice
+         */
+        boolean isKey(double[] signature) {
+            if (key != null && distance(key, signature) <= threshold) {
+                return false;
+            }
+            key = signature;
+            return true;
+        }
+    }
+
+    /**
+     * @param engine analyzes and reduces the slices
+     * @param stack rgb stack
+     * @param histogramMode HISTOGRAM_GLOBAL, HISTOGRAM_PER_SLICE or HISTOGRAM_SEQUENCE
+     * @param threshold max histogram distance of slices sharing their intervals in sequence mode
+     * @param inFlight max number of slices processed at a time
+     */
+    public StackReducer(ColorReducerEngine engine, ImageStack stack, int histogramMode, double threshold, int inFlight) {
+        this.engine = engine;
+        this.stack = stack;
+        this.histogramMode = histogramMode;
+        this.threshold = threshold;
+        this.inFlight = inFlight;
+    }
+
+    public boolean hasGlobalHistogram() {
+        return histogramMode == HISTOGRAM_GLOBAL;
+    }
+
+    /**
+     * Sums up the hue histograms of all slices. The sums are counted in long, a stack of thousands of
+     * slices easily has more than 2^31 pixels in one container.
+     * @param monitor ProgressMonitor informed after every slice, may be null
+     * @return histogram of the whole stack
+     * @see ColorReducerEngine#toHistogram()
+     */
+    public int[] buildGlobalHistogram(ProgressMonitor monitor) {
+        final long[] sum = new long[engine.getHistogramSize()];
+
+        forEachSlice(new SliceAction() {
+            public void process(int n, ImageProcessor ip) {
+                int[] sliceHistogram = engine.buildHistogram(ip);
+                synchronized (sum) {
+                    for (int i = 0; i < sum.length; i++) {
+                        sum[i] += sliceHistogram[i];
+                    }
+                }
+            }
+        }, monitor);
+        return ColorReducerEngine.toHistogram(sum);
+    }
+
+    /**
+     * Reduces every slice into a new stack.
+     * @param colorLevel number of dominant colors, 0 => desaturation
+     * @param global color intervals of the global histogram of the stack, only used with a global histogram
+     * @param monitor ProgressMonitor informed after every slice, may be null
+     * @return reduced stack, incomplete if the monitor was cancelled
+     * @see StackReducer#buildGlobalHistogram()
+     */
+    public ImageStack reduce(final int colorLevel, ColorIntervalIndex global, ProgressMonitor monitor) {
+        final int width = stack.getWidth(), height = stack.getHeight();
+        final ImageStack output = new ImageStack(width, height, stack.getSize());
+        if (histogramMode == HISTOGRAM_SEQUENCE && colorLevel > 0) {
+            reduceSequence(colorLevel, output, monitor);
+            return output;
+        }
+        final HueRemap sharedRemap = hasGlobalHistogram() && colorLevel > 0 ? engine.createHueRemap(global, colorLevel) : null;
+
+        forEachSlice(new SliceAction() {
+            public void process(int n, ImageProcessor ip) {
+                ImageProcessor reduced;
+
+                if (colorLevel == 0) {
+                    reduced = engine.desaturateColors(ip);
+                } else {
+                    HueRemap remap = sharedRemap;
+                    if (remap == null) {
+                        remap = analyzeSlice(ip, colorLevel);
+                    }
+                    reduced = engine.remapHues(ip, new ColorProcessor(width, height), remap, null);
+                }
+                setSlice(output, n, reduced);
+            }
+        }, monitor);
+        return output;
+    }
+
+    private void setSlice(ImageStack output, int n, ImageProcessor reduced) {
+        synchronized (output) {
+            output.setPixels(reduced.getPixels(), n);
+            output.setSliceLabel(stack.getSliceLabel(n), n);
+        }
+    }
+
+    /**
+     * @return remap of the slice's own color intervals
+     */
+    private HueRemap analyzeSlice(ImageProcessor ip, int colorLevel) {
+        return engine.createHueRemap(engine.analyze(ip), colorLevel);
+    }
+
+    /**
+     * Reduces a sequence in one pass. The slices are read and sampled ahead by inFlight threads and taken
+     * in order; only key slices are analyzed, the slices in between are reduced with the intervals of
+     * their key slice.
+     * @param colorLevel number of dominant colors
+     * @param output stack receiving the reduced slices
+     * @param monitor ProgressMonitor informed after every slice, may be null
+     */
+    private void reduceSequence(int colorLevel, ImageStack output, ProgressMonitor monitor) {
+        int size = stack.getSize();
+        ExecutorService readers = Executors.newFixedThreadPool(Math.min(inFlight, size));
+        List<Future<SampledSlice>> reads = new ArrayList<Future<SampledSlice>>(size);
+        KeySelector keys = new KeySelector(threshold);
+        HueRemap remap = null;
+
+        try {
+            for (int n = 1; n <= size; n++) {
+                // at most inFlight slices are read but not yet reduced
+                while (reads.size() < Math.min(n - 1 + inFlight, size)) {
+                    reads.add(readers.submit(readSlice(reads.size() + 1)));
+                }
+                if (monitor != null && monitor.isCancelled()) {
+                    return;
+                }
+
+                SampledSlice slice = reads.get(n - 1).get();
+                reads.set(n - 1, null);
+                if (keys.isKey(slice.signature)) {
+                    remap = analyzeSlice(slice.ip, colorLevel);
+                }
+                setSlice(output, n, engine.remapHues(slice.ip, new ColorProcessor(slice.ip.getWidth(),
+                        slice.ip.getHeight()), remap, null));
+
+                if (monitor != null) {
+                    monitor.progressChanged(n * 100 / size);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            readers.shutdownNow();
+        }
+    }
+
+    private Callable<SampledSlice> readSlice(final int n) {
+        return new Callable<SampledSlice>() {
+            public SampledSlice call() {
+                ImageProcessor ip = stack.getProcessor(n);
+                return new SampledSlice(ip, signature(engine.buildSampledHistogram(ip, SIGNATURE_CELL_SIZE)));
+            }
+        };
+    }
+
+    /**
+     * @return histogram folded into SIGNATURE_SIZE containers and normalized to a sum of 1
+     */
+    static double[] signature(int[] histogram) {
+        double[] signature = new double[SIGNATURE_SIZE];
+        long total = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            signature[i * SIGNATURE_SIZE / histogram.length] += histogram[i];
+            total += histogram[i];
+        }
+        for (int i = 0; i < SIGNATURE_SIZE; i++) {
+            signature[i] = total > 0 ? signature[i] / total : 0;
+        }
+        return signature;
+    }
+
+    /**
+     * @return share of the pixels whose hue would have to move to turn one signature into the other, in [0, 1]
+     */
+    static double distance(double[] a, double[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += Math.abs(a[i] - b[i]);
+        }
+        return sum / 2;
+    }
+
+    /**
+     * Runs the action for all slices on a pool of inFlight threads, so no more slices are read at a
+     * time. Each slice is processed in bands on the worker pool in addition.
+     */
+    private void forEachSlice(final SliceAction action, final ProgressMonitor monitor) {
+        final int size = stack.getSize();
+        final AtomicInteger done = new AtomicInteger();
+        List<Callable<Void>> slices = new ArrayList<Callable<Void>>(size);
+
+        for (int number = 1; number <= size; number++) {
+            final int n = number;
+            slices.add(new Callable<Void>() {
+                public Void call() {
+                    if (monitor != null && monitor.isCancelled()) {
+                        return null;
+                    }
+                    action.process(n, stack.getProcessor(n));
+
+                    if (monitor != null) {
+                        monitor.progressChanged(done.incrementAndGet() * 100 / size);
+                    }
+                    return null;
+                }
+            });
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(inFlight, size));
+        try {
+            for (Future<Void> future : pool.invokeAll(slices)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
+
+/**
+ * Read access to the packed rgb pixels of an image. Pixels are addressed row by row like the pixel
+ * array of a ColorProcessor. Implementations have to allow concurrent reads of different pixels.
+ */
+interface PixelSource {
+    int getPixelCount();
+
+    /**
+     * @param index pixel
+     * @return packed rgb pixel, the alpha byte is ignored
+     */
+    int get(int index);
+}
+
+/**
+ * Write access to the packed rgb pixels of an image. Implementations have to allow concurrent writes
+ * of different pixels.
+ */
+interface PixelSink {
+    /**
+     * @param index pixel
+     * @param rgb packed rgb pixel
+     */
+    void set(int index, int rgb);
+}
+
+/**
+ * Pixels of a ColorProcessor or any other int array of packed rgb pixels.
+ */
+final class ProcessorPixels implements PixelSource, PixelSink {
+
+    private final int[] pixels;
+
+    /**
+     * @param ip ColorProcessor
+     */
+    public ProcessorPixels(ImageProcessor ip) {
+        this((int[]) ip.getPixels());
+    }
+
+    /**
+     * @param pixels packed rgb pixels
+     */
+    public ProcessorPixels(int[] pixels) {
+        this.pixels = pixels;
+    }
+
+    @Override
+    public int getPixelCount() {
+        return pixels.length;
+    }
+
+    @Override
+    public int get(int index) {
+        return pixels[index];
+    }
+
+    @Override
+    public void set(int index, int rgb) {
+        pixels[index] = rgb;
+    }
+}
+
+/**
+ * Pixels of a raw file of interleaved 8 bit rgb or argb samples, mapped into memory. Pixels are read and
+ * written in place, so even frames of several gigabytes are never copied into the heap. A mapping may
+ * not exceed 2 GB, therefore larger files are mapped in several segments. Only absolute buffer accesses
+ * are used, so bands of pixels can be processed in parallel.
+ */
+final class MappedPixels implements PixelSource, PixelSink {
+
+    public static final int RGB = 3;
+    public static final int ARGB = 4;
+
+    /**
+     * unmaps a buffer right away on Java 9 and later, null on older JVMs
+     */
+    private static final Object unsafe;
+    private static final Method invokeCleaner;
+
+    static {
+        Object theUnsafe = null;
+        Method cleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            cleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            theUnsafe = field.get(null);
+        } catch (Exception e) {
+            // Java 8, the cleaner of every buffer is called instead
+            cleaner = null;
+        }
+        unsafe = theUnsafe;
+        invokeCleaner = cleaner;
+    }
+
+    /**
+     * pixels per mapped segment, keeps every segment below 2 GB
+     */
+    private static final int SEGMENT_SHIFT = 28;
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+    private final MappedByteBuffer[] segments;
+    private final int pixelCount;
+    private final int bytesPerPixel;
+
+    /**
+     * Maps an existing raw file.
+     * @param file raw file
+     * @param bytesPerPixel RGB or ARGB
+     * @param writable true => changes are written to the file
+     * @return MappedPixels
+     */
+    public static MappedPixels open(File file, int bytesPerPixel, boolean writable) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+        try {
+            long length = raf.length();
+            if (length % bytesPerPixel != 0) {
+                throw new IOException(file + ": size is not a multiple of " + bytesPerPixel + " bytes");
+            }
+            return new MappedPixels(raf.getChannel(), writable ? MapMode.READ_WRITE : MapMode.READ_ONLY,
+                    length / bytesPerPixel, bytesPerPixel);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Creates or overwrites a raw file of the given number of pixels and maps it.
+     * @param file raw file
+     * @param pixelCount number of pixels
+     * @param bytesPerPixel RGB or ARGB
+     * @return MappedPixels
+     */
+    public static MappedPixels create(File file, int pixelCount, int bytesPerPixel) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength((long) pixelCount * bytesPerPixel);
+            return new MappedPixels(raf.getChannel(), MapMode.READ_WRITE, pixelCount, bytesPerPixel);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private MappedPixels(FileChannel channel, MapMode mode, long pixelCount, int bytesPerPixel) throws IOException {
+        if (pixelCount > Integer.MAX_VALUE) {
+            throw new IOException("more than " + Integer.MAX_VALUE + " pixels");
+        }
+        this.pixelCount = (int) pixelCount;
+        this.bytesPerPixel = bytesPerPixel;
+
+        segments = new MappedByteBuffer[(int) ((pixelCount + SEGMENT_MASK) >> SEGMENT_SHIFT)];
+        for (int i = 0; i < segments.length; i++) {
+            long first = (long) i << SEGMENT_SHIFT;
+            long pixels = Math.min(pixelCount - first, 1L << SEGMENT_SHIFT);
+            // the mapping stays valid after the channel is closed
+            segments[i] = channel.map(mode, first * bytesPerPixel, pixels * bytesPerPixel);
+        }
+    }
+
+    @Override
+    public int getPixelCount() {
+        return pixelCount;
+    }
+
+    @Override
+    public int get(int index) {
+        MappedByteBuffer segment = segments[index >>> SEGMENT_SHIFT];
+        int position = (index & SEGMENT_MASK) * bytesPerPixel;
+
+        if (bytesPerPixel == ARGB) {
+            return segment.getInt(position);
+        }
+        return 0xff000000 | (segment.get(position) & 0xff) << 16 | (segment.get(position + 1) & 0xff) << 8
+                | segment.get(position + 2) & 0xff;
+    }
+
+    @Override
+    public void set(int index, int rgb) {
+        MappedByteBuffer segment = segments[index >>> SEGMENT_SHIFT];
+        int position = (index & SEGMENT_MASK) * bytesPerPixel;
+
+        if (bytesPerPixel == ARGB) {
+            segment.putInt(position, rgb);
+        } else {
+            segment.put(position, (byte) (rgb >> 16));
+            segment.put(position + 1, (byte) (rgb >> 8));
+            segment.put(position + 2, (byte) rgb);
+        }
+    }
+
+    /**
+     * Writes all changes to the file.
+     */
+    public void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Unmaps the file, the pixels must not be accessed afterwards. Otherwise a mapping is only released
+     * when its buffer is garbage collected, which may take long for buffers of gigabytes living outside
+     * the heap. If the JVM offers no way to unmap, the buffers are left to the garbage collector.
+     */
+    public void close() {
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i] != null) {
+                unmap(segments[i]);
+                segments[i] = null;
+            }
+        }
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            if (invokeCleaner != null) {
+                invokeCleaner.invoke(unsafe, buffer);
+            } else {
+                Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object bufferCleaner = cleaner.invoke(buffer);
+                if (bufferCleaner != null) {
+                    bufferCleaner.getClass().getMethod("clean").invoke(bufferCleaner);
+                }
+            }
+        } catch (Exception e) {
+            // released by the garbage collector
+        }
+    }
+}
+
+/**
+ * Reduces images which do not fit into the heap. The input is a raw file of interleaved 8 bit rgb
+ * samples, which is read in tiles of TILE_PIXELS pixels. The first pass sums up the hue histogram of
+ * all tiles, the second pass remaps the hues of every tile and writes it to the output right away.
+ * Histogram and remap do not depend on neighbouring pixels, so tiles are just consecutive parts of the
+ * file and the memory used depends on the tile size only, not on the image dimensions.
+ */
+final class StreamingReducer {
+
+    /**
+     * pixels per tile, default
+     */
+    public static final int TILE_PIXELS = 1 << 20;
+
+    private static final int BYTES_PER_PIXEL = 3;
+
+    private final ColorReducerEngine engine;
+    private final HueTable hueTable;
+    private final Desaturator desaturator;
+
+    /**
+     * samples of the current tile, reused for all tiles
+     */
+    private final byte[] samples;
+
+    /**
+     * pixels of the current tile, reused for all tiles
+     */
+    private final int[] tile;
+    private final ProcessorPixels tilePixels;
+
+    /**
+     * @param engine analyzes the histogram of the file
+     */
+    public StreamingReducer(ColorReducerEngine engine) {
+        this(engine, TILE_PIXELS);
+    }
+
+    /**
+     * @param engine analyzes the histogram of the file
+     * @param tilePixels number of pixels held in memory at a time
+     */
+    public StreamingReducer(ColorReducerEngine engine, int tilePixels) {
+        this.engine = engine;
+        this.hueTable = engine.getHueTable();
+        this.desaturator = engine.getDesaturator();
+        samples = new byte[tilePixels * BYTES_PER_PIXEL];
+        tile = new int[tilePixels];
+        this.tilePixels = new ProcessorPixels(tile);
+    }
+
+    /**
+     * Reduces a raw rgb file in two passes.
+     * @param input raw rgb file
+     * @param output raw rgb file receiving the reduced image, not the input
+     * @param colorLevel number of dominant colors, 0 => desaturation
+     */
+    public void reduce(File input, File output, int colorLevel) throws IOException {
+        if (input.getCanonicalFile().equals(output.getCanonicalFile())) {
+            throw new IOException("output is the input: " + output);
+        }
+        HueRemap remap = null;
+
+        if (colorLevel > 0) {
+            int[] histogram = buildHistogram(input);
+            remap = engine.createHueRemap(engine.indexColorIntervals(histogram), colorLevel);
+        }
+        reduce(input, output, remap);
+    }
 
-                    public void propertyChange(PropertyChangeEvent evt) {
-                        if ("progress".equalsIgnoreCase(evt.getPropertyName())) {
-                            int progress = (Integer) evt.getNewValue();
-                            progressBar.setValue(progress);
+    /**
+     * First pass: builds the hue histogram of a raw rgb file tile by tile. The file may hold more than
+     * 2^31 pixels, so the tiles are summed up in long and scaled to fit into the histogram.
+     * @param input raw rgb file
+     * @return histogram
+     * @see ColorReducerEngine#toHistogram()
+     */
+    public int[] buildHistogram(File input) throws IOException {
+        long[] counts = new long[hueTable.getHistogramSize()];
+        FileChannel in = new FileInputStream(input).getChannel();
+
+        try {
+            int pixels;
+            while ((pixels = readTile(in)) > 0) {
+                long[] tileCounts = engine.getPool().invoke(new RowBandHistogram(1, pixels, counts.length) {
+                    @Override
+                    protected void countBand(int startRow, int endRow, long[] bandCounts) {
+                        int[] containers = new int[HueTable.CHUNK];
+                        for (int i = startRow; i < endRow; i += HueTable.CHUNK) {
+                            int n = Math.min(HueTable.CHUNK, endRow - i);
+                            hueTable.lookup(tilePixels, i, i + n, containers);
+                            for (int k = 0; k < n; k++) {
+                                bandCounts[containers[k]]++;
+                            }
                         }
                     }
-                };
-
-                if (!s.getValueIsAdjusting()) {
-                    // let's display a fancy hourglass cursor
-                    sliderFrame.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-                    // get slider's value
-                    int sliderValue = s.getValue();
-
-                    if (sliderValue != 0) { // we want to reduce colors
-                        CalculationTask ct = new ReductionTask(sliderValue);
-                        ct.addPropertyChangeListener(changeListener);
-                        ct.execute();
-                    } else { // we just want to desaturate the image, no real reduction
-                        CalculationTask ct = new DesaturationTask();
-                        ct.addPropertyChangeListener(changeListener);
-                        ct.execute();
-                    }
+                });
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] += tileCounts[i];
                 }
             }
-        });
-
-        JPanel p = new JPanel();
-        p.setLayout(new FlowLayout());
-        p.setPreferredSize(new Dimension(250, 100));
-        p.setMinimumSize(new Dimension(250, 100));
-
-        sliderFrame.addWindowListener(new WindowAdapter() {
-
-            @Override
-            public void windowClosing(WindowEvent e) {
-                WindowManager.removeWindow(sliderFrame);
-                sliderFrame.dispose();
-                result.changes = false;
-                result.close();
-                histogramWindow.close();
-            }
-        });
-
-        btnOkay = new JButton("OK");
-        btnOkay.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                sliderFrame.dispose();
-                histogramWindow.close();
-                WindowManager.removeWindow(sliderFrame);
-
-                resizeToPreviewSize = false;
+        } finally {
+            in.close();
+        }
+        return ColorReducerEngine.toHistogram(counts);
+    }
 
-                fireSliderChangeEvent();
-            }
-        });
-        btnOkay.setSize(100, 25);
+    /**
+     * Second pass: remaps the hues tile by tile and appends every tile to the output.
+     * @param input raw rgb file
+     * @param output raw rgb file receiving the reduced image, not the input
+     * @param remap HueRemap of the histogram containers, null => desaturation
+     */
+    public void reduce(File input, File output, final HueRemap remap) throws IOException {
+        // opening the output truncates it, it must not be the input
+        if (input.getCanonicalFile().equals(output.getCanonicalFile())) {
+            throw new IOException("output is the input: " + output);
+        }
+        FileChannel in = new FileInputStream(input).getChannel();
+        FileChannel out = new FileOutputStream(output).getChannel();
+
+        try {
+            int pixels;
+            while ((pixels = readTile(in)) > 0) {
+                engine.getPool().invoke(new RowBandAction(1, pixels, null) {
+                    @Override
+                    protected void processBand(int from, int to) {
+                        if (remap != null) {
+                            remap.apply(tilePixels, tilePixels, from, to, hueTable);
+                        } else {
+                            for (int i = from; i < to; i++) {
+                                tile[i] = desaturator.desaturate(tile[i]);
+                            }
+                        }
+                        packSamples(from, to);
+                    }
+                });
 
-        btnCancel = new JButton("Abbrechen");
-        btnCancel.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                sliderFrame.dispose();
-                result.changes = false;
-                result.close();
-                histogramWindow.close();
+                ByteBuffer buffer = ByteBuffer.wrap(samples, 0, pixels * BYTES_PER_PIXEL);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
             }
-        });
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
 
-        center.add(slider, BorderLayout.NORTH);
-        center.add(text, BorderLayout.CENTER);
-        center.add(progressBar, BorderLayout.SOUTH);
+    /**
+     * Reads the next tile and unpacks its samples into packed rgb pixels.
+     * @return number of pixels read, 0 at the end of the file
+     */
+    private int readTile(FileChannel in) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(samples);
+        while (buffer.hasRemaining() && in.read(buffer) >= 0) {
+            // read until the tile is full or the file ends
+        }
 
-        bottom.add(btnOkay);
-        bottom.add(btnCancel);
+        if (buffer.position() % BYTES_PER_PIXEL != 0) {
+            throw new IOException("file size is not a multiple of " + BYTES_PER_PIXEL + " bytes");
+        }
 
-        sliderFrame.setLayout(new BorderLayout());
-        sliderFrame.add(top, BorderLayout.NORTH);
-        sliderFrame.add(center, BorderLayout.CENTER);
-        sliderFrame.add(bottom, BorderLayout.SOUTH);
-        sliderFrame.pack();
-        sliderFrame.toFront();
+        int pixels = buffer.position() / BYTES_PER_PIXEL;
+        for (int i = 0, j = 0; i < pixels; i++, j += BYTES_PER_PIXEL) {
+            tile[i] = 0xff000000 | (samples[j] & 0xff) << 16 | (samples[j + 1] & 0xff) << 8 | samples[j + 2] & 0xff;
+        }
+        return pixels;
     }
 
-    private void log(String msg) {
-        if (DEBUG_MODE) {
-            IJ.log(msg);
+    /**
+     * Packs the pixels [from, to) of the tile back into rgb samples.
+     */
+    private void packSamples(int from, int to) {
+        for (int i = from, j = from * BYTES_PER_PIXEL; i < to; i++, j += BYTES_PER_PIXEL) {
+            int rgb = tile[i];
+            samples[j] = (byte) (rgb >> 16);
+            samples[j + 1] = (byte) (rgb >> 8);
+            samples[j + 2] = (byte) rgb;
         }
     }
 }
 
 /**
- * A ColorInterval is a local maximum and its edges in the histogram. The dominance of a color hue
- * is calculated by interval's area.
+ * Wall time, pixel throughput, allocated bytes and worker utilization of the processing stages. Repeated
+ * measurements of a stage are summed up. A measurement counts the bytes allocated by the thread which
+ * started it and the time and bytes of the bands it forked to the worker pool, so images processed at the
+ * same time do not show up in each other's numbers. Bands are assigned to the measurement running on the
+ * thread which created them, and to the measurements enclosing it. Every measurement is also committed as
+ * the JFR event "ColorReducer.Stage" if the JVM supports custom JFR events, so production runs can be
+ * recorded with -XX:StartFlightRecording. The events are created by reflection and simply left out on
+ * older JVMs. All methods are thread safe.
  */
-final class ColorInterval implements Comparable<ColorInterval> {
+final class ReductionMetrics {
+
+    public static final String SETUP = "setup";
+    public static final String DECODE = "decode";
+    public static final String HISTOGRAM = "histogram";
+    public static final String INTERVALS = "intervals";
+    public static final String REDUCTION = "reduction";
+    public static final String DESATURATION = "desaturation";
+    public static final String DISPLAY = "display";
+    public static final String ENCODE = "encode";
+
+    private static final int COUNT = 0;
+    private static final int NANOS = 1;
+    private static final int PIXELS = 2;
+    private static final int BYTES = 3;
+    private static final int BUSY_NANOS = 4;
+    private static final int CAPACITY_NANOS = 5;
 
     /**
-     * left border
+     * innermost running measurement of every thread
      */
-    private int begin;
+    private static final ThreadLocal<Measurement> current = new ThreadLocal<Measurement>();
+
     /**
-     * right border
+     * null if the JVM cannot tell the bytes allocated by a thread
      */
-    private int end;
+    private static final ThreadMXBean threads;
+
+    private static final Object eventFactory;
+    private static final Method newEvent;
+    private static final Method beginEvent;
+    private static final Method setEventField;
+    private static final Method commitEvent;
+
+    static {
+        Object bean = ManagementFactory.getThreadMXBean();
+        ThreadMXBean allocations = null;
+        if (bean instanceof ThreadMXBean && ((ThreadMXBean) bean).isThreadAllocatedMemorySupported()
+                && ((ThreadMXBean) bean).isThreadAllocatedMemoryEnabled()) {
+            allocations = (ThreadMXBean) bean;
+        }
+        threads = allocations;
+
+        Object factory = null;
+        Method[] methods = new Method[4];
+        try {
+            Class<?> annotation = Class.forName("jdk.jfr.AnnotationElement");
+            Constructor<?> annotate = annotation.getConstructor(Class.class, Object.class);
+            List<Object> annotations = new ArrayList<Object>();
+            annotations.add(annotate.newInstance(Class.forName("jdk.jfr.Name"), "ColorReducer.Stage"));
+            annotations.add(annotate.newInstance(Class.forName("jdk.jfr.Label"), "Color Reducer Stage"));
+            annotations.add(annotate.newInstance(Class.forName("jdk.jfr.Category"), new String[] {"Color Reducer"}));
+            annotations.add(annotate.newInstance(Class.forName("jdk.jfr.StackTrace"), Boolean.FALSE));
+
+            Constructor<?> field = Class.forName("jdk.jfr.ValueDescriptor")
+                    .getConstructor(Class.class, String.class);
+            List<Object> fields = new ArrayList<Object>();
+            fields.add(field.newInstance(String.class, "stage"));
+            fields.add(field.newInstance(long.class, "pixels"));
+            fields.add(field.newInstance(long.class, "bytesAllocated"));
+            fields.add(field.newInstance(double.class, "utilization"));
+
+            Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            factory = factoryClass.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+            methods[0] = factoryClass.getMethod("newEvent");
+            methods[1] = eventClass.getMethod("begin");
+            methods[2] = eventClass.getMethod("set", int.class, Object.class);
+            methods[3] = eventClass.getMethod("commit");
+        } catch (Exception e) {
+            // no JFR, the metrics are still summed up
+            factory = null;
+        } catch (LinkageError e) {
+            factory = null;
+        }
+        eventFactory = factory;
+        newEvent = methods[0];
+        beginEvent = methods[1];
+        setEventField = methods[2];
+        commitEvent = methods[3];
+    }
 
     /**
-     * cumulated frequency of histogram values within the interval
+     * A running measurement of a stage.
+     * @see ReductionMetrics#start()
      */
-    private int frequency;
+    static final class Measurement {
+        private final String stage;
+        private final long pixels;
+        private final Thread thread;
+
+        /**
+         * measurement which was running on the thread before, restored by stop()
+         */
+        private final Measurement enclosing;
+        private final Object event;
+        private final long startNanos;
+        private final long startBytes;
+
+        /**
+         * time and bytes of the bands processed by the worker pool for this measurement
+         */
+        private final AtomicLong busyNanos = new AtomicLong();
+        private final AtomicLong workerBytes = new AtomicLong();
+
+        /**
+         * largest parallelism of the pools which processed bands for this measurement
+         */
+        private final AtomicInteger parallelism = new AtomicInteger(1);
+
+        private long bytes = -1;
+
+        private Measurement(String stage, long pixels, Measurement enclosing, Object event) {
+            this.stage = stage;
+            this.pixels = pixels;
+            this.thread = Thread.currentThread();
+            this.enclosing = enclosing;
+            this.event = event;
+            this.startBytes = threadAllocatedBytes();
+            this.startNanos = System.nanoTime();
+        }
+
+        /**
+         * @return bytes allocated by the measurement once it is stopped, -1 if the JVM cannot tell
+         */
+        long getBytes() {
+            return bytes;
+        }
+    }
 
     /**
-     * max value in interval
+     * count, nanos, pixels, bytes, busy nanos and capacity nanos of every stage in the order of their first measurement
      */
-    private int max;
+    private final LinkedHashMap<String, long[]> totals = new LinkedHashMap<String, long[]>();
 
     /**
-     * absolute position of max value in histogram. This is not a position
-     * within the interval.
+     * @return innermost measurement running on the calling thread, null if there is none
      */
-    private int maxPos;
-    private static int cnt = 0;
+    static Measurement current() {
+        return current.get();
+    }
 
     /**
-     * Is this interval one of those considered dominant?
+     * @return bytes allocated by the calling thread so far, -1 if the JVM cannot tell
      */
-    private boolean isDominant = false;
-
-    private static int[] histogram;
-
-    public ColorInterval(int begin, int end, int[] histogram) {
-        this.begin = begin;
-        this.end = end;
-        ColorInterval.histogram = histogram;
-        frequency = determineFrequency();
-        max = determineMax();
+    static long threadAllocatedBytes() {
+        return threads == null ? -1 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
     }
 
     /**
-     * Calculates the cumulated frequency of histogram values within the interval.
-     * This method should only be executed for initial calculation or updating the frequency.
-     * If you wish to obtain the frequency, use <b>getFrequency()</b>
-     * @see ColorReducer#getFrequency()
-     * @return int frequency
+     * Adds a band processed by a worker thread to a measurement and the measurements enclosing it. The
+     * bytes of bands run by the measuring thread itself are already counted by stop(). The utilization
+     * is relative to the parallelism of the pool running the band.
+     * @param m measurement the band was created for, may be null
+     * @param startNanos System.nanoTime() when the band started
+     * @param startBytes threadAllocatedBytes() when the band started
      */
-    private int determineFrequency() {
-        int res = 0;
-        if (begin < end) {
-            for (int i = begin; i <= end; i++) {
-                res += histogram[i];
+    static void addWork(Measurement m, long startNanos, long startBytes) {
+        if (m == null) {
+            return;
+        }
+        long nanos = System.nanoTime() - startNanos;
+        long bytes = startBytes < 0 ? 0 : threadAllocatedBytes() - startBytes;
+        Thread thread = Thread.currentThread();
+        ForkJoinPool pool = ForkJoinTask.getPool();
+        int parallelism = pool != null ? pool.getParallelism() : 1;
+
+        for (; m != null; m = m.enclosing) {
+            m.busyNanos.addAndGet(nanos);
+            int known;
+            while ((known = m.parallelism.get()) < parallelism && !m.parallelism.compareAndSet(known, parallelism)) {
+                // another band raised it at the same time
             }
-        } else {
-            for (int i = begin; i < histogram.length; i++) {
-                res += histogram[i];
+            if (m.thread != thread) {
+                m.workerBytes.addAndGet(bytes);
             }
+        }
+    }
 
-            for (int i = end; i >= 0; i--) {
-                res += histogram[i];
+    /**
+     * @param stage name of the stage, e.g. HISTOGRAM
+     * @param pixels number of pixels processed by the stage
+     * @return Measurement to pass to stop() on the same thread
+     */
+    Measurement start(String stage, long pixels) {
+        Object event = null;
+        if (eventFactory != null) {
+            try {
+                event = newEvent.invoke(eventFactory);
+                beginEvent.invoke(event);
+            } catch (Exception e) {
+                event = null;
             }
         }
-        return res;
+        Measurement m = new Measurement(stage, pixels, current.get(), event);
+        current.set(m);
+        return m;
     }
 
     /**
-     * Find max value in histogram, within the borders of the interval. The position
-     * of max value is also stored.
-     *
-     * @see getMax()
-     * @see getMaxIndex()
-     * @return max value
+     * Adds a finished measurement to the totals of its stage and commits its JFR event.
+     * @param m Measurement returned by start()
      */
-    private int determineMax() {
-        max = histogram[begin];
-        maxPos = begin;
-        if (begin < end) { // normaler Fall
-            for (int i = begin + 1; i <= end; i++) {
-                if (histogram[i] > max) {
-                    max = histogram[i];
-                    maxPos = i;
-                }
-            }
-        } else { // interval is open? (is at start or end of histogram)
-            for (int i = end; i >= 0; i--) {
-                if (histogram[i] > max) {
-                    max = histogram[i];
-                    maxPos = i;
-                }
+    void stop(Measurement m) {
+        long nanos = System.nanoTime() - m.startNanos;
+        long busy = m.busyNanos.get();
+        long capacity = nanos * m.parallelism.get();
+        long bytes = m.startBytes < 0 ? -1 : threadAllocatedBytes() - m.startBytes + m.workerBytes.get();
+        m.bytes = bytes;
+        if (current.get() == m) {
+            current.set(m.enclosing);
+        }
+
+        if (m.event != null) {
+            try {
+                setEventField.invoke(m.event, 0, m.stage);
+                setEventField.invoke(m.event, 1, m.pixels);
+                setEventField.invoke(m.event, 2, bytes);
+                setEventField.invoke(m.event, 3, utilization(busy, capacity));
+                commitEvent.invoke(m.event);
+            } catch (Exception e) {
+                // the totals are still recorded
             }
-            for (int i = begin; i < histogram.length - 1; i++) {
-                if (histogram[i] > max) {
-                    max = histogram[i];
-                    maxPos = i;
-                }
+        }
+
+        synchronized (totals) {
+            long[] total = totals.get(m.stage);
+            if (total == null) {
+                total = new long[6];
+                totals.put(m.stage, total);
             }
+            total[COUNT]++;
+            total[NANOS] += nanos;
+            total[PIXELS] += m.pixels;
+            total[BYTES] = bytes < 0 || total[BYTES] < 0 ? -1 : total[BYTES] + bytes;
+            total[BUSY_NANOS] += busy;
+            total[CAPACITY_NANOS] += capacity;
         }
-        return max;
     }
 
-    public void setBegin(int newBegin) {
-        if (newBegin < histogram.length - 1) {
-            begin = newBegin;
-            frequency = determineFrequency();
-            max = determineMax();
+    /**
+     * @param capacity wall time multiplied by the parallelism of the pool
+     * @return share of the pool busy with pixels during the wall time
+     */
+    private static double utilization(long busy, long capacity) {
+        return capacity > 0 ? Math.min(1.0, busy / (double) capacity) : 0;
+    }
+
+    /**
+     * @return summed wall time of all stages in nanoseconds
+     */
+    long getTotalNanos() {
+        long nanos = 0;
+        synchronized (totals) {
+            for (long[] total : totals.values()) {
+                nanos += total[NANOS];
+            }
         }
+        return nanos;
     }
 
     /**
-     * Compare by cumulated frequencies.
+     * @return JSON array with one object per stage
      */
-    @Override
-    public int compareTo(ColorInterval o) {
-        int myFreq = getFrequency();
-        int otherFreq = o.getFrequency();
+    String toJson() {
+        StringBuilder json = new StringBuilder("[");
+        synchronized (totals) {
+            for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+                long[] total = entry.getValue();
+                json.append(json.length() == 1 ? "" : ", ").append(String.format(Locale.ROOT,
+                        "{\"stage\": \"%s\", \"count\": %d, \"nanos\": %d, \"pixels\": %d, \"pixelsPerSecond\": %.0f, "
+                        + "\"bytesAllocated\": %d, \"utilization\": %.3f}",
+                        entry.getKey(), total[COUNT], total[NANOS], total[PIXELS], pixelsPerSecond(total),
+                        total[BYTES], utilization(total[BUSY_NANOS], total[CAPACITY_NANOS])));
+            }
+        }
+        return json.append("]").toString();
+    }
 
-        if (myFreq < otherFreq) {
-            return -1;
-        } else if (myFreq > otherFreq) {
-            return 1;
+    private static double pixelsPerSecond(long[] total) {
+        return total[NANOS] > 0 ? total[PIXELS] * 1e9 / total[NANOS] : 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        synchronized (totals) {
+            for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+                long[] total = entry.getValue();
+                text.append(String.format("%-13s %5dx %10.2f ms %10.1f MP/s %14d B %5.0f%% busy%n",
+                        entry.getKey(), total[COUNT], total[NANOS] / 1e6, pixelsPerSecond(total) / 1e6,
+                        total[BYTES], utilization(total[BUSY_NANOS], total[CAPACITY_NANOS]) * 100));
+            }
         }
-        return 0;
+        return text.toString();
     }
+}
+
+/**
+ * Reduces the colors of many images without any dialog. Every image runs through decoding, histogram,
+ * reduction and encoding on its own thread, so the stages of different images overlap. Histogram and
+ * reduction of each image are additionally split into bands on the worker pool. At most the given number
+ * of images is held in memory at a time. Raw files of interleaved rgb (.rgb, .raw) or argb (.argb) samples
+ * are mapped into memory and written as raw files again; with --stream rgb files are read tile by tile by
+ * the StreamingReducer instead. Run it with
+ * <pre>java -cp ij.jar:plugins ColorReducerBatch --level 3 --out results [--format png] [--in-flight 4] [--threads 8] [--bins 360] [--stream] [--8bit] [--palette] [--metrics metrics.jsonl] inputs...</pre>
+ * Inputs may be image files or directories, level 0 desaturates the images. Only files with an image
+ * extension are taken from directories. Inputs of the same base name are written as name.png, name_2.png
+ * and so on in the order of the inputs. --bins sets the number of
+ * histogram containers. With --metrics the stage metrics of every image are appended to the file as
+ * one JSON line, "-" writes them to standard output. With --8bit the desaturated
+ * images are written as 8 bit grey images. With --palette saturation and value are quantized as well
+ * and decoded images are written as 8 bit indexed images.
+ */
+final class ColorReducerBatch {
 
     /**
-     * @return int Width of interval.
+     * output formats written by save()
      */
-    public int getWidth() {
-        return end - begin + 1;
-    }
+    static final List<String> FORMATS = Arrays.asList("png", "tif", "tiff", "jpg", "jpeg", "bmp", "gif");
 
     /**
-     * @return int Left border of interval.
+     * extensions of the files taken from input directories
      */
-    public int getBegin() {
-        return begin;
-    }
+    private static final List<String> IMAGE_EXTENSIONS = Arrays.asList("png", "tif", "tiff", "jpg", "jpeg", "bmp",
+            "gif", "pgm", "ppm", "pnm", "rgb", "raw", "argb");
 
     /**
-     * @return int Right border of interval.
+     * options followed by a value
      */
-    public int getEnd() {
-        return end;
+    private static final List<String> VALUE_OPTIONS = Arrays.asList("--level", "--out", "--format", "--in-flight",
+            "--threads", "--bins", "--metrics");
+
+    private final int colorLevel;
+    private final File outputDirectory;
+    private final String format;
+    private final int inFlight;
+    private final boolean stream;
+    private final boolean grey8;
+    private final boolean palette;
+
+    /**
+     * receives one JSON line of stage metrics per image, null => no metrics
+     */
+    private final PrintStream metricsLog;
+
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * @param colorLevel number of dominant colors, 0 => desaturation
+     * @param outputDirectory directory receiving the reduced images
+     * @param format output format: png, tif, jpg, bmp or gif
+     * @param inFlight max number of images held in memory at a time, at least 1
+     * @param stream true => raw rgb files are read tile by tile instead of being mapped
+     * @param grey8 true => desaturated images are written as 8 bit images
+     * @param palette true => reduced images are written as 8 bit indexed images, see HuePalette
+     * @param metricsLog receives one JSON line of stage metrics per image, may be null
+     */
+    public ColorReducerBatch(int colorLevel, File outputDirectory, String format, int inFlight, boolean stream,
+            boolean grey8, boolean palette, PrintStream metricsLog) {
+        if (!FORMATS.contains(format.toLowerCase())) {
+            throw new IllegalArgumentException("unknown format: " + format);
+        }
+        if (inFlight < 1) {
+            throw new IllegalArgumentException("at least one image has to be in flight, not " + inFlight);
+        }
+        this.colorLevel = colorLevel;
+        this.outputDirectory = outputDirectory;
+        this.format = format.toLowerCase();
+        this.inFlight = inFlight;
+        this.stream = stream;
+        this.grey8 = grey8;
+        this.palette = palette;
+        this.metricsLog = metricsLog;
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        System.setProperty("java.awt.headless", "true");
+
+        int level = 2;
+        String out = null;
+        String format = "png";
+        int inFlight = Runtime.getRuntime().availableProcessors();
+        boolean stream = false;
+        boolean grey8 = false;
+        boolean palette = false;
+        PrintStream metricsLog = null;
+        List<File> inputs = new ArrayList<File>();
+
+        int threads = 0;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (VALUE_OPTIONS.contains(args[i]) && i + 1 == args.length) {
+                    exitWithUsage();
+                }
+                if ("--level".equals(args[i])) {
+                    level = Integer.parseInt(args[++i]);
+                } else if ("--out".equals(args[i])) {
+                    out = args[++i];
+                } else if ("--format".equals(args[i])) {
+                    format = args[++i];
+                } else if ("--in-flight".equals(args[i])) {
+                    inFlight = Integer.parseInt(args[++i]);
+                } else if ("--threads".equals(args[i])) {
+                    threads = Integer.parseInt(args[++i]);
+                    if (threads < 1) {
+                        exitWithUsage();
+                    }
+                } else if ("--bins".equals(args[i])) {
+                    System.setProperty(Color_Reducer.HISTOGRAM_SIZE_PROPERTY, args[++i]);
+                } else if ("--stream".equals(args[i])) {
+                    stream = true;
+                } else if ("--8bit".equals(args[i])) {
+                    grey8 = true;
+                } else if ("--palette".equals(args[i])) {
+                    palette = true;
+                } else if ("--metrics".equals(args[i])) {
+                    String path = args[++i];
+                    metricsLog = "-".equals(path) ? System.out : new PrintStream(new FileOutputStream(path, true), true);
+                } else {
+                    collectImages(new File(args[i]), inputs);
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.err.println(e.getMessage());
+            exitWithUsage();
+        }
+
+        if (out == null || inputs.isEmpty() || level < 0 || palette && level > HuePalette.MAX_COLORS
+                || !FORMATS.contains(format.toLowerCase()) || inFlight < 1) {
+            exitWithUsage();
+        }
+        if (threads > 0) {
+            Color_Reducer.setWorkerPool(new ForkJoinPool(threads));
+        }
+
+        File outputDirectory = new File(out);
+        outputDirectory.mkdirs();
+
+        ColorReducerBatch batch = new ColorReducerBatch(level, outputDirectory, format, inFlight, stream, grey8, palette, metricsLog);
+        System.exit(batch.process(inputs) == inputs.size() ? 0 : 1);
+    }
+
+    private static void exitWithUsage() {
+        System.err.println("usage: ColorReducerBatch --level n --out directory [--format png|tif|jpg|bmp|gif]"
+                + " [--in-flight n] [--threads n] [--bins n] [--stream] [--8bit] [--palette] [--metrics file] files or directories...");
+        System.exit(2);
     }
 
     /**
-     * @return int cumulated frequency
+     * Adds a file or the image files of a directory, sorted by name.
      */
-    public int getFrequency() {
-        return frequency;
+    private static void collectImages(File input, List<File> images) {
+        if (input.isDirectory()) {
+            File[] files = input.listFiles();
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.isFile() && !file.isHidden() && IMAGE_EXTENSIONS.contains(extension(file.getName()))) {
+                    images.add(file);
+                }
+            }
+        } else {
+            images.add(input);
+        }
     }
 
     /**
-     * @see ColorInterval#determineMax()
-     * @return max value
+     * @return lower case extension of the file name without the dot, "" if there is none
      */
-    public int getMax() {
-        return max;
+    private static String extension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(dot + 1).toLowerCase() : "";
     }
 
     /**
-     * @see ColorInterval#determineMax()
-     * @return int Position of max value.
+     * Names the output files of all inputs. Raw files keep their name, other images get the extension of
+     * the format. A name already taken by a previous input gets a number appended to its base name.
+     * @return output file of every input
      */
-    public int getMaxIndex() {
-        return maxPos;
+    private List<File> outputFiles(List<File> inputs) {
+        List<File> outputs = new ArrayList<File>(inputs.size());
+        Set<String> taken = new HashSet<String>();
+
+        for (File input : inputs) {
+            String name = input.getName();
+            String extension = extension(name);
+            String base = extension.isEmpty() ? name : name.substring(0, name.length() - extension.length() - 1);
+            String suffix = "." + (extension.equals("rgb") || extension.equals("raw") || extension.equals("argb")
+                    ? extension : format);
+
+            String output = base + suffix;
+            // file systems may ignore the case of names
+            for (int n = 2; !taken.add(output.toLowerCase()); n++) {
+                output = base + "_" + n + suffix;
+            }
+            outputs.add(new File(outputDirectory, output));
+        }
+        return outputs;
     }
 
-    @Override
-    public String toString() {
-        return "begin: " + begin + " end: " + end;
+    /**
+     * Reduces all images and waits until the last one is written.
+     * @param inputs image files
+     * @return number of images written successfully
+     */
+    public int process(List<File> inputs) throws InterruptedException {
+        final Semaphore slots = new Semaphore(inFlight);
+        ExecutorService pipeline = Executors.newFixedThreadPool(inFlight);
+        long start = System.nanoTime();
+
+        List<File> outputs = outputFiles(inputs);
+
+        try {
+            for (int i = 0; i < inputs.size(); i++) {
+                final File input = inputs.get(i);
+                final File output = outputs.get(i);
+                // blocks while inFlight images are still in memory
+                slots.acquire();
+                pipeline.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            ReductionMetrics metrics = processImage(input, output);
+                            processed.incrementAndGet();
+                            logMetrics(input, metrics);
+                        } catch (Exception e) {
+                            failed.incrementAndGet();
+                            System.err.println(input + ": " + e);
+                        } finally {
+                            slots.release();
+                        }
+                    }
+                });
+            }
+        } finally {
+            pipeline.shutdown();
+            pipeline.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%d images reduced, %d failed, %.1f s, %.2f images/s",
+                processed.get(), failed.get(), seconds, processed.get() / seconds));
+        return processed.get();
     }
 
     /**
-     * @param flag true => is dominant; false => is not dominant
+     * @param input image file
+     * @param output file receiving the reduced image
+     * @return metrics of the stages the image went through
      */
-    public void setDominant(boolean flag) {
-        isDominant = flag;
+    private ReductionMetrics processImage(File input, File output) throws IOException {
+        // raw outputs keep the name of the input, writing them into the input directory would destroy the input
+        if (input.getCanonicalFile().equals(output.getCanonicalFile())) {
+            throw new IOException("output is the input, choose another --out directory");
+        }
+        String name = input.getName();
+        String extension = extension(name);
+
+        boolean rgb = "rgb".equals(extension) || "raw".equals(extension);
+
+        // raw files may be larger than the heap, they are never decoded into arrays
+        if (rgb && stream) {
+            // both passes over the file count as one stage
+            ReductionMetrics metrics = new ReductionMetrics();
+            ReductionMetrics.Measurement m = metrics.start(ReductionMetrics.REDUCTION, input.length() / 3);
+            try {
+                new StreamingReducer(ColorReducerEngine.createDefault()).reduce(input, output, colorLevel);
+            } finally {
+                metrics.stop(m);
+            }
+            return metrics;
+        }
+        if (rgb || "argb".equals(extension)) {
+            return reduceMapped(input, output, rgb ? MappedPixels.RGB : MappedPixels.ARGB);
+        }
+
+        ColorReducerEngine engine = ColorReducerEngine.createDefault();
+        ReductionMetrics metrics = engine.getMetrics();
+
+        // decode
+        ReductionMetrics.Measurement m = metrics.start(ReductionMetrics.DECODE, 0);
+        ImagePlus imp;
+        try {
+            imp = IJ.openImage(input.getPath());
+            if (imp == null) {
+                throw new IOException("not an image");
+            }
+            if (imp.getBitDepth() != 24) {
+                throw new IOException("not an rgb image");
+            }
+        } finally {
+            metrics.stop(m);
+        }
+
+        // histogram and reduction
+        ImageProcessor ip = imp.getProcessor();
+        ColorIntervalIndex index = engine.analyze(ip);
+
+        int level = Math.min(colorLevel, index.size());
+        ImageProcessor reduced;
+        if (level > 0 && palette) {
+            reduced = engine.reduceToPalette(ip, index, level, null);
+        } else if (level > 0) {
+            reduced = engine.reduceColors(ip, ip, index, level, null);
+        } else if (grey8 || palette) {
+            m = metrics.start(ReductionMetrics.DESATURATION, ip.getPixelCount());
+            try {
+                reduced = engine.getDesaturator().toByteProcessor(ip, engine.getPool(), null);
+            } finally {
+                metrics.stop(m);
+            }
+        } else {
+            reduced = engine.desaturateColors(ip);
+        }
+
+        // encode
+        m = metrics.start(ReductionMetrics.ENCODE, reduced.getPixelCount());
+        try {
+            if (!save(new ImagePlus(name, reduced), output)) {
+                throw new IOException("could not write " + output);
+            }
+        } finally {
+            metrics.stop(m);
+        }
+        return metrics;
     }
 
-    public boolean isDominant() {
-        return isDominant;
+    /**
+     * Writes the metrics of an image as one JSON line.
+     */
+    private void logMetrics(File input, ReductionMetrics metrics) {
+        if (metricsLog == null) {
+            return;
+        }
+        String path = input.getPath().replace("\\", "\\\\").replace("\"", "\\\"");
+        metricsLog.println("{\"input\": \"" + path + "\", \"level\": " + colorLevel + ", \"threads\": "
+                + Color_Reducer.getWorkerPool().getParallelism() + ", \"nanos\": " + metrics.getTotalNanos()
+                + ", \"stages\": " + metrics.toJson() + "}");
     }
 
     /**
-     * checks if a given index is within the boundaries of the interval, returns true or false.
+     * Reduces a raw file mapped into memory. The histogram is read from the mapped input and the
+     * reduced pixels are written straight into the mapped output.
+     * @return metrics of the stages the file went through
      */
-    boolean includes(int index) {
-        return index >= begin && index <= end;
+    private ReductionMetrics reduceMapped(File input, File output, int bytesPerPixel) throws IOException {
+        MappedPixels source = MappedPixels.open(input, bytesPerPixel, false);
+        MappedPixels target = null;
+        try {
+            target = MappedPixels.create(output, source.getPixelCount(), bytesPerPixel);
+            int pixels = source.getPixelCount();
+
+            // raw files have no dimensions, every pixel is a row of its own
+            ColorReducerEngine engine = ColorReducerEngine.createDefault();
+
+            if (colorLevel > 0) {
+                ColorIntervalIndex index = engine.indexColorIntervals(engine.buildHistogram(source, 1, pixels));
+                engine.remapHues(source, target, 1, pixels, engine.createHueRemap(index, colorLevel), null);
+            } else {
+                engine.desaturate(source, target, 1, pixels);
+            }
+            target.force();
+            return engine.getMetrics();
+        } finally {
+            // the mappings of many large files would otherwise pile up until the next garbage collection
+            source.close();
+            if (target != null) {
+                target.close();
+            }
+        }
     }
-}
\ No newline at end of file
+
+    private boolean save(ImagePlus imp, File output) {
+        FileSaver saver = new FileSaver(imp);
+        String path = output.getPath();
+
+        if ("png".equals(format)) {
+            return saver.saveAsPng(path);
+        } else if ("jpg".equals(format) || "jpeg".equals(format)) {
+            return saver.saveAsJpeg(path);
+        } else if ("bmp".equals(format)) {
+            return saver.saveAsBmp(path);
+        } else if ("gif".equals(format)) {
+            return saver.saveAsGif(path);
+        }
+        return saver.saveAsTiff(path);
+    }
+}
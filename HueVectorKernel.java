@@ -0,0 +1,84 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Hue kernel on the incubating Vector API (JDK 16 and later). A lane group of pixels is unpacked into
+ * doubles at once, max and min are taken lane by lane and the branches of Color_Reducer.hue() on the
+ * channel holding the max become masked blends. The samples are divided by 255 in float and the hue in
+ * double, exactly like Color_Reducer.hueIndex(), so both return the same containers.
+ *
+ * Compile and run with --add-modules jdk.incubator.vector. Without the module the class cannot be
+ * loaded and HueKernel falls back to the scalar kernel.
+ */
+final class HueVectorKernel extends HueKernel {
+
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+
+    /**
+     * ints and floats with as many lanes as DOUBLES
+     */
+    private static final VectorSpecies<Integer> INTS = VectorSpecies.of(int.class,
+            VectorShape.forBitSize(DOUBLES.length() * Integer.SIZE));
+    private static final VectorSpecies<Float> FLOATS = VectorSpecies.of(float.class, INTS.vectorShape());
+
+    /**
+     * @return true if the JVM has SIMD registers for at least two doubles
+     */
+    static boolean isSupported() {
+        return DOUBLES.length() >= 2;
+    }
+
+    @Override
+    public int hueIndex(int rgb, int histogramSize) {
+        return Color_Reducer.hueIndex(rgb, histogramSize);
+    }
+
+    @Override
+    public void hueIndices(int[] rgb, int from, int to, int histogramSize, int[] containers) {
+        int i = from;
+
+        for (int bound = from + DOUBLES.loopBound(to - from); i < bound; i += DOUBLES.length()) {
+            IntVector pixels = IntVector.fromArray(INTS, rgb, i);
+            DoubleVector r = unit(pixels.lanewise(VectorOperators.LSHR, 16));
+            DoubleVector g = unit(pixels.lanewise(VectorOperators.LSHR, 8));
+            DoubleVector b = unit(pixels);
+
+            DoubleVector max = r.max(g).max(b);
+            DoubleVector min = r.min(g).min(b);
+
+            // r holds the max before g, b only if neither does
+            VectorMask<Double> maxIsR = max.eq(r);
+            VectorMask<Double> maxIsG = max.eq(g).andNot(maxIsR);
+
+            DoubleVector minuend = r.blend(g, maxIsR).blend(b, maxIsG);
+            DoubleVector subtrahend = g.blend(b, maxIsR).blend(r, maxIsG);
+            DoubleVector sector = DoubleVector.broadcast(DOUBLES, 4).blend(0, maxIsR).blend(2, maxIsG);
+
+            DoubleVector h = sector.add(minuend.sub(subtrahend).div(max.sub(min)));
+            // greys divide 0 by 0, their hue is 0
+            h = h.blend(0, max.eq(min)).mul(60);
+            h = h.add(360, h.lt(0));
+
+            // the hue is not negative, so truncating equals Math.floor()
+            IntVector index = (IntVector) h.div(360.0).mul(histogramSize).convertShape(VectorOperators.D2I, INTS, 0);
+            index.intoArray(containers, i);
+        }
+
+        for (; i < to; i++) {
+            containers[i] = Color_Reducer.hueIndex(rgb[i], histogramSize);
+        }
+    }
+
+    /**
+     * @return lowest 8 bit sample of every lane in [0, 1], rounded like rgb2hsv()
+     */
+    private static DoubleVector unit(IntVector samples) {
+        FloatVector unit = (FloatVector) samples.and(0xff).convertShape(VectorOperators.I2F, FLOATS, 0);
+        return (DoubleVector) unit.div(255f).convertShape(VectorOperators.F2D, DOUBLES, 0);
+    }
+}
@@ -0,0 +1,67 @@
+import colorreducer.benchmarks.Stages;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import java.util.Random;
+
+/**
+ * Stages of the benchmarks on an image of six regions with different hues, each with noise in hue,
+ * saturation and value, so the histogram has a few dominant intervals like a photograph.
+ */
+public class ColorReducerStages implements Stages {
+
+    private ColorReducerEngine engine;
+    private ImageProcessor ip;
+    private ImageProcessor ipout;
+    private int[] histogram;
+    private ColorIntervalIndex index;
+    private int colorLevel;
+
+    @Override
+    public void setUp(double megapixels, int bins, int level) {
+        int width = (int) Math.sqrt(megapixels * 1e6 * 4 / 3);
+        int height = (int) (megapixels * 1e6 / width);
+        ip = syntheticImage(width, height);
+        ipout = new ColorProcessor(width, height);
+
+        engine = new ColorReducerEngine(HueTable.getInstance(bins, Color_Reducer.getWorkerPool()),
+                Desaturator.getDefault(), new ReductionMetrics());
+        histogram = engine.buildHistogram(ip);
+        index = engine.indexColorIntervals(histogram);
+        colorLevel = Math.min(level, index.size());
+    }
+
+    @Override
+    public Object histogram() {
+        return engine.buildHistogram(ip);
+    }
+
+    @Override
+    public Object intervals() {
+        return engine.detectColorIntervals(histogram);
+    }
+
+    @Override
+    public Object reduction() {
+        return engine.reduceColors(ip, ipout, index, colorLevel, null);
+    }
+
+    @Override
+    public Object desaturation() {
+        return engine.desaturateColors(ip);
+    }
+
+    private static ImageProcessor syntheticImage(int width, int height) {
+        double[] hues = {10, 120, 215, 55, 290, 165};
+        Random random = new Random(42);
+        int[] pixels = new int[width * height];
+
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, i++) {
+                double h = hues[x * 3 / width + 3 * (y * 2 / height)] + random.nextGaussian() * 10;
+                h = (h + 360) % 360;
+                pixels[i] = Color_Reducer.hsv2rgb(h, 0.4 + random.nextDouble() * 0.5, 0.3 + random.nextDouble() * 0.7);
+            }
+        }
+        return new ColorProcessor(width, height, pixels);
+    }
+}
@@ -0,0 +1,68 @@
+package colorreducer.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Headless benchmark of the processing stages (histogram, interval detection, reduction, desaturation)
+ * on synthetic rgb images. No ImageJ window is opened. Sizes are given in megapixels, bins are the
+ * numbers of histogram containers to compare, e.g.
+ * <pre>java -jar target/benchmarks.jar -p megapixels=1,10 -p bins=360,4096 -prof gc -rf json</pre>
+ * The gc profiler adds the bytes allocated per operation (gc.alloc.rate.norm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx4g"})
+public class StageBenchmark {
+
+    @Param({"1", "10", "100"})
+    public double megapixels;
+
+    @Param({"360"})
+    public int bins;
+
+    @Param({"3"})
+    public int level;
+
+    private Stages stages;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        stages = (Stages) Class.forName("ColorReducerStages").getDeclaredConstructor().newInstance();
+        stages.setUp(megapixels, bins, level);
+    }
+
+    @Benchmark
+    public Object histogram() {
+        return stages.histogram();
+    }
+
+    @Benchmark
+    public Object intervals() {
+        return stages.intervals();
+    }
+
+    @Benchmark
+    public Object reduction() {
+        return stages.reduction();
+    }
+
+    @Benchmark
+    public Object desaturation() {
+        return stages.desaturation();
+    }
+}
@@ -0,0 +1,25 @@
+package colorreducer.benchmarks;
+
+/**
+ * Processing stages of Color_Reducer on one synthetic image. The plugin lives in the default package,
+ * which code of a named package cannot refer to, so ColorReducerStages implements this interface in the
+ * default package and the benchmarks load it by name.
+ */
+public interface Stages {
+
+    /**
+     * Creates the image and everything the stages need besides it.
+     * @param megapixels image size
+     * @param bins number of histogram containers
+     * @param level number of dominant colors of the reduction
+     */
+    void setUp(double megapixels, int bins, int level);
+
+    Object histogram();
+
+    Object intervals();
+
+    Object reduction();
+
+    Object desaturation();
+}
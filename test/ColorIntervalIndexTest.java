@@ -0,0 +1,116 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class ColorIntervalIndexTest {
+
+    private final Random random = new Random(18);
+
+    @Test
+    public void replacementEqualsLinearSearchForRandomHistograms() {
+        for (int n = 0; n < 300; n++) {
+            int[] histogram = randomHistogram(n % 2 == 0 ? 360 : 97);
+            List<ColorInterval> intervals = new ArrayList<ColorInterval>(ColorReducerEngine.getColorIntervals(histogram));
+            Collections.sort(intervals);
+
+            assertEqualsLinearSearch(histogram, intervals);
+        }
+    }
+
+    @Test
+    public void overlapsGoToTheMoreFrequentInterval() {
+        int[] histogram = new int[36];
+        Arrays.fill(histogram, 1);
+        histogram[5] = 50;
+        histogram[20] = 30;
+        histogram[30] = 10;
+
+        List<ColorInterval> intervals = new ArrayList<ColorInterval>(Arrays.asList(
+                new ColorInterval(0, 12, histogram), new ColorInterval(10, 25, histogram),
+                new ColorInterval(28, 33, histogram), new ColorInterval(14, 16, histogram)));
+        Collections.sort(intervals);
+
+        assertEqualsLinearSearch(histogram, intervals);
+    }
+
+    @Test
+    public void frequencyWrapsAroundTheEnd() {
+        int[] histogram = randomHistogram(360);
+        ColorIntervalIndex index = new ColorIntervalIndex(histogram, Collections.<ColorInterval>emptyList());
+
+        assertEquals(sum(histogram, 10, 20), index.frequency(10, 20));
+        assertEquals(sum(histogram, 350, 359) + sum(histogram, 0, 5), index.frequency(350, 5));
+    }
+
+    /**
+     * Compares the index at every color level with the search through all intervals it replaced.
+     */
+    private static void assertEqualsLinearSearch(int[] histogram, List<ColorInterval> intervals) {
+        ColorIntervalIndex index = new ColorIntervalIndex(histogram, intervals);
+
+        for (int level = 1; level <= intervals.size(); level++) {
+            List<ColorInterval> dominant = intervals.subList(intervals.size() - level, intervals.size());
+            HueRemap remap = index.createHueRemap(level);
+
+            for (int container = 0; container < histogram.length; container++) {
+                ColorInterval expected = linearReplacement(container, intervals, dominant, histogram.length);
+                String message = "level " + level + ", container " + container;
+                assertSame(message, expected, index.replacement(container, level));
+                assertEquals(message, expected.getMaxIndex(), remap.getTarget(container));
+            }
+        }
+    }
+
+    /**
+     * @return the including interval if it is dominant, otherwise the first dominant interval whose
+     * borders are closest to the container
+     */
+    private static ColorInterval linearReplacement(int container, List<ColorInterval> intervals,
+            List<ColorInterval> dominant, int n) {
+        ColorInterval including = null;
+        for (ColorInterval ci : intervals) {
+            if (ci.includes(container)) {
+                including = ci;
+            }
+        }
+        for (ColorInterval di : dominant) {
+            if (di == including) {
+                return including;
+            }
+        }
+
+        int minD = Integer.MAX_VALUE;
+        ColorInterval minI = null;
+        for (ColorInterval di : dominant) {
+            int toBegin = Math.abs(container - di.getBegin()), toEnd = Math.abs(container - di.getEnd());
+            int distance = Math.min(Math.min(toBegin, toEnd), Math.min(n - toBegin, n - toEnd));
+            if (minD > distance) {
+                minD = distance;
+                minI = di;
+            }
+        }
+        return minI;
+    }
+
+    private int[] randomHistogram(int size) {
+        int[] histogram = new int[size];
+        for (int i = 0; i < size; i++) {
+            histogram[i] = random.nextInt(4) == 0 ? 0 : random.nextInt(1000);
+        }
+        return histogram;
+    }
+
+    private static long sum(int[] histogram, int from, int to) {
+        long sum = 0;
+        for (int i = from; i <= to; i++) {
+            sum += histogram[i];
+        }
+        return sum;
+    }
+}
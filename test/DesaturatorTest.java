@@ -0,0 +1,34 @@
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class DesaturatorTest {
+
+    private static final int COLORS = 1 << 24;
+    private static final int WIDTH = 256;
+    private static final int HEIGHT = 256;
+
+    @Test
+    public void valueEqualsZeroSaturationForAllColors() {
+        Desaturator desaturator = Desaturator.getInstance(Desaturator.VALUE);
+        int[] src = new int[WIDTH * HEIGHT];
+        int[] dst = new int[src.length];
+        double[] hsv = new double[3];
+
+        for (int first = 0; first < COLORS; first += src.length) {
+            for (int i = 0; i < src.length; i++) {
+                src[i] = 0xff000000 | (first + i);
+            }
+            desaturator.desaturate(new ProcessorPixels(src), new ProcessorPixels(dst), WIDTH, HEIGHT,
+                    Color_Reducer.getWorkerPool(), null);
+
+            for (int i = 0; i < src.length; i++) {
+                Color_Reducer.rgb2hsv(src[i], hsv);
+                int expected = Color_Reducer.hsv2rgb(hsv[0], 0, hsv[2]);
+                if (dst[i] != expected) {
+                    assertEquals("color " + Integer.toHexString(src[i]), expected, dst[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import java.awt.Rectangle;
+import java.util.Random;
+import org.junit.Test;
+
+public class HueHistogramTest {
+
+    private static final int WIDTH = 300;
+    private static final int HEIGHT = 200;
+
+    private final HueTable hueTable = HueTable.getInstance(360, Color_Reducer.getWorkerPool());
+    private final Random random = new Random(17);
+
+    @Test
+    public void incrementalUpdatesEqualRebuild() {
+        ColorProcessor ip = randomImage();
+        HueHistogram histogram = new HueHistogram(hueTable, ip, null, null, Color_Reducer.getWorkerPool());
+        assertArrayEquals(rebuild(ip, null, null), histogram.getCounts());
+
+        for (int edit = 0; edit < 5; edit++) {
+            paint(ip, new Rectangle(random.nextInt(WIDTH - 40), random.nextInt(HEIGHT - 30), 40, 30));
+            assertTrue(histogram.update(ip));
+            assertArrayEquals("edit " + edit, rebuild(ip, null, null), histogram.getCounts());
+        }
+    }
+
+    @Test
+    public void editsOutsideTheRoiAreFound() {
+        ColorProcessor ip = randomImage();
+        Rectangle roi = new Rectangle(40, 30, 120, 80);
+        ByteProcessor mask = new ByteProcessor(roi.width, roi.height);
+        byte[] inside = (byte[]) mask.getPixels();
+        for (int i = 0; i < inside.length; i++) {
+            inside[i] = (byte) (i % 3 == 0 ? 0 : 255);
+        }
+        HueHistogram histogram = new HueHistogram(hueTable, ip, roi, mask, Color_Reducer.getWorkerPool());
+
+        // only pixels outside the region change, the reduction of the whole image has to notice
+        paint(ip, new Rectangle(200, 120, 50, 50));
+        assertTrue(histogram.update(ip));
+        assertArrayEquals(rebuild(ip, roi, inside), histogram.getCounts());
+
+        // the edit overlaps the region, but the rectangle of the ROI is not passed along
+        paint(ip, new Rectangle(0, 0, 100, 60));
+        assertTrue(histogram.update(ip));
+        assertArrayEquals(rebuild(ip, roi, inside), histogram.getCounts());
+
+        paint(ip, new Rectangle(100, 90, 100, 40));
+        histogram.update(ip);
+        assertArrayEquals(rebuild(ip, roi, inside), histogram.getCounts());
+    }
+
+    @Test
+    public void editsKeepingTheHuesAreFound() {
+        ColorProcessor ip = randomImage();
+        HueHistogram histogram = new HueHistogram(hueTable, ip, null, null, Color_Reducer.getWorkerPool());
+        int[] before = histogram.getCounts();
+
+        // darker pixels of the same hue container
+        int[] pixels = (int[]) ip.getPixels();
+        int darkened = 0;
+        for (int i = 0; i < pixels.length; i += 7) {
+            int darker = (pixels[i] >> 1) & 0x7f7f7f;
+            if (darker != pixels[i] && hueTable.lookup(darker) == hueTable.lookup(pixels[i])) {
+                pixels[i] = darker;
+                darkened++;
+            }
+        }
+        assertTrue(darkened > 0);
+
+        assertTrue(histogram.update(ip));
+        assertArrayEquals(before, histogram.getCounts());
+        assertFalse(histogram.update(ip));
+    }
+
+    @Test
+    public void unchangedImageDoesNotUpdate() {
+        ColorProcessor ip = randomImage();
+        HueHistogram histogram = new HueHistogram(hueTable, ip, null, null, Color_Reducer.getWorkerPool());
+
+        assertFalse(histogram.update(ip));
+        assertFalse(histogram.update(ip));
+        assertArrayEquals(rebuild(ip, null, null), histogram.getCounts());
+    }
+
+    private ColorProcessor randomImage() {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt(1 << 24);
+        }
+        return new ColorProcessor(WIDTH, HEIGHT, pixels);
+    }
+
+    private void paint(ColorProcessor ip, Rectangle area) {
+        int[] pixels = (int[]) ip.getPixels();
+        for (int y = area.y; y < area.y + area.height; y++) {
+            for (int x = area.x; x < area.x + area.width; x++) {
+                pixels[y * WIDTH + x] = random.nextInt(1 << 24);
+            }
+        }
+    }
+
+    private int[] rebuild(ColorProcessor ip, Rectangle roi, byte[] mask) {
+        Rectangle bounds = roi != null ? roi : new Rectangle(0, 0, WIDTH, HEIGHT);
+        int[] pixels = (int[]) ip.getPixels();
+        int[] counts = new int[hueTable.getHistogramSize()];
+
+        for (int y = 0; y < bounds.height; y++) {
+            for (int x = 0; x < bounds.width; x++) {
+                if (mask == null || mask[y * bounds.width + x] != 0) {
+                    counts[hueTable.lookup(pixels[(bounds.y + y) * WIDTH + bounds.x + x])]++;
+                }
+            }
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,89 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class HueKernelTest {
+
+    private static final int COLORS = 1 << 24;
+    private static final int[] SIZES = {360, 4096};
+
+    @Test
+    public void selectedKernelEqualsHueIndexForAllColors() {
+        assertEqualsHueIndex(HueKernel.getInstance());
+    }
+
+    @Test
+    public void vectorKernelEqualsHueIndexForAllColors() {
+        HueKernel kernel = HueKernel.loadVector();
+        assumeTrue("vector kernel not available", kernel != null);
+        assertEqualsHueIndex(kernel);
+    }
+
+    @Test
+    public void vectorKernelHandlesUnalignedRanges() {
+        HueKernel kernel = HueKernel.loadVector();
+        assumeTrue("vector kernel not available", kernel != null);
+
+        Random random = new Random(15);
+        int[] rgb = new int[1000];
+        for (int i = 0; i < rgb.length; i++) {
+            rgb[i] = random.nextInt();
+        }
+        int[] containers = new int[rgb.length];
+        kernel.hueIndices(rgb, 3, 998, 360, containers);
+
+        for (int i = 0; i < rgb.length; i++) {
+            int expected = i < 3 || i >= 998 ? 0 : Color_Reducer.hueIndex(rgb[i], 360);
+            assertEquals("pixel " + i, expected, containers[i]);
+        }
+    }
+
+    @Test
+    public void hueIndexEqualsRgb2hsv() {
+        Random random = new Random(15);
+        double[] hsv = new double[3];
+
+        for (int n = 0; n < 1000000; n++) {
+            int rgb = random.nextInt(COLORS);
+            Color_Reducer.rgb2hsv(rgb, hsv);
+            for (int size : SIZES) {
+                assertEquals(Color_Reducer.containerOf(hsv[0], size), Color_Reducer.hueIndex(rgb, size));
+            }
+        }
+    }
+
+    @Test
+    public void fullTableEqualsHueIndexForAllColors() {
+        HueTable table = HueTable.getInstance(360, Color_Reducer.getWorkerPool());
+        assumeTrue("no room for the full table", table.isExact());
+
+        for (int rgb = 0; rgb < COLORS; rgb++) {
+            assertEquals(Color_Reducer.hueIndex(rgb, 360), table.lookup(rgb));
+        }
+    }
+
+    private static void assertEqualsHueIndex(HueKernel kernel) {
+        int chunk = 1 << 16;
+        int[] rgb = new int[chunk];
+        int[] containers = new int[chunk];
+
+        for (int size : SIZES) {
+            for (int first = 0; first < COLORS; first += chunk) {
+                for (int i = 0; i < chunk; i++) {
+                    rgb[i] = first + i;
+                }
+                kernel.hueIndices(rgb, 0, chunk, size, containers);
+                for (int i = 0; i < chunk; i++) {
+                    int expected = Color_Reducer.hueIndex(rgb[i], size);
+                    if (containers[i] != expected || kernel.hueIndex(rgb[i], size) != expected) {
+                        assertEquals("color " + Integer.toHexString(rgb[i]) + ", size " + size,
+                                expected, containers[i]);
+                        assertEquals(expected, kernel.hueIndex(rgb[i], size));
+                    }
+                }
+            }
+        }
+    }
+}
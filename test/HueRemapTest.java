@@ -0,0 +1,63 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class HueRemapTest {
+
+    private static final int COLORS = 1 << 24;
+    private static final int CHUNK = 1 << 16;
+
+    @Test
+    public void remapEqualsHsvConversionForAllColors() {
+        HueTable table = HueTable.getInstance(360, Color_Reducer.getWorkerPool());
+        assumeTrue("no room for the full table", table.isExact());
+        assertEqualsHsvConversion(table);
+    }
+
+    @Test
+    public void remapWithoutTableEqualsHsvConversionForAllColors() {
+        HueTable table;
+        System.setProperty(HueTable.MODE_PROPERTY, HueTable.MODE_NONE);
+        try {
+            table = HueTable.getInstance(1000, Color_Reducer.getWorkerPool());
+        } finally {
+            System.clearProperty(HueTable.MODE_PROPERTY);
+        }
+        assertEqualsHsvConversion(table);
+    }
+
+    /**
+     * Compares HueRemap.apply() with rgb2hsv -> replace hue -> hsv2rgb, the conversion it replaced.
+     */
+    private static void assertEqualsHsvConversion(HueTable table) {
+        int size = table.getHistogramSize();
+        Random random = new Random(4);
+        int[] targets = new int[size];
+        for (int i = 0; i < size; i++) {
+            targets[i] = random.nextInt(size);
+        }
+        HueRemap remap = new HueRemap(targets);
+
+        int[] src = new int[CHUNK];
+        int[] dst = new int[CHUNK];
+        double[] hsv = new double[3];
+
+        for (int first = 0; first < COLORS; first += CHUNK) {
+            for (int i = 0; i < CHUNK; i++) {
+                src[i] = 0xff000000 | (first + i);
+            }
+            remap.apply(new ProcessorPixels(src), new ProcessorPixels(dst), 0, CHUNK, table);
+
+            for (int i = 0; i < CHUNK; i++) {
+                Color_Reducer.rgb2hsv(src[i], hsv);
+                int target = targets[Color_Reducer.containerOf(hsv[0], size)];
+                int expected = Color_Reducer.hsv2rgb(target / (double) size * 360f, hsv[1], hsv[2]);
+                if (dst[i] != expected) {
+                    assertEquals("color " + Integer.toHexString(src[i]) + ", size " + size, expected, dst[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import ij.ImageStack;
+import ij.process.ColorProcessor;
+import java.util.Random;
+import org.junit.Test;
+
+public class StackReducerTest {
+
+    @Test
+    public void distanceIsShareOfMovedPixels() {
+        double[] a = {0.5, 0.5, 0, 0};
+        double[] b = {0, 0.5, 0.5, 0};
+        double[] c = {0, 0, 0, 1};
+
+        assertEquals(0, StackReducer.distance(a, a), 1e-12);
+        assertEquals(0.5, StackReducer.distance(a, b), 1e-12);
+        assertEquals(0.5, StackReducer.distance(b, a), 1e-12);
+        assertEquals(1, StackReducer.distance(a, c), 1e-12);
+    }
+
+    @Test
+    public void signatureIsFoldedAndNormalized() {
+        int[] histogram = new int[360];
+        histogram[0] = 30;
+        histogram[9] = 10;
+        histogram[359] = 40;
+
+        double[] signature = StackReducer.signature(histogram);
+        assertEquals(36, signature.length);
+        assertEquals(0.5, signature[0], 1e-12);
+        assertEquals(0.5, signature[35], 1e-12);
+        assertEquals(0, StackReducer.signature(new int[360])[0], 0);
+    }
+
+    @Test
+    public void slowDriftIsComparedWithKeySlice() {
+        StackReducer.KeySelector keys = new StackReducer.KeySelector(0.05);
+        boolean[] isKey = new boolean[5];
+
+        for (int n = 0; n < isKey.length; n++) {
+            double p = n * 0.03;
+            isKey[n] = keys.isKey(new double[] {p, 1 - p});
+        }
+        assertArrayEquals(new boolean[] {true, false, true, false, true}, isKey);
+    }
+
+    @Test
+    public void equalSlicesShareTheirKey() {
+        StackReducer.KeySelector keys = new StackReducer.KeySelector(0);
+        double[] a = {1, 0};
+        double[] b = {0, 1};
+
+        assertArrayEquals(new boolean[] {true, false, true, false, true},
+                new boolean[] {keys.isKey(a), keys.isKey(a), keys.isKey(b), keys.isKey(b), keys.isKey(a)});
+    }
+
+    @Test
+    public void sequenceEqualsPerSliceForRepeatedScenes() {
+        int width = 120, height = 80;
+        int[] sceneA = scene(width, height, 0, 1);
+        int[] sceneB = scene(width, height, 90, 2);
+        ImageStack stack = new ImageStack(width, height);
+        for (int[] pixels : new int[][] {sceneA, sceneA, sceneA, sceneB, sceneB, sceneA}) {
+            stack.addSlice(null, new ColorProcessor(width, height, pixels.clone()));
+        }
+
+        ColorReducerEngine engine = ColorReducerEngine.createDefault();
+        ImageStack perSlice = new StackReducer(engine, stack, StackReducer.HISTOGRAM_PER_SLICE, 0.05, 2)
+                .reduce(3, null, null);
+        ImageStack sequence = new StackReducer(engine, stack, StackReducer.HISTOGRAM_SEQUENCE, 0.05, 2)
+                .reduce(3, null, null);
+
+        for (int n = 1; n <= stack.getSize(); n++) {
+            assertArrayEquals("slice " + n, (int[]) perSlice.getPixels(n), (int[]) sequence.getPixels(n));
+        }
+    }
+
+    /**
+     * @return image of six noisy regions of different hues, rotated by the given shift
+     */
+    private static int[] scene(int width, int height, double shift, long seed) {
+        double[] hues = {10, 120, 215, 55, 290, 165};
+        Random random = new Random(seed);
+        int[] pixels = new int[width * height];
+
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, i++) {
+                double h = hues[x * 3 / width + 3 * (y * 2 / height)] + shift + random.nextGaussian() * 10;
+                pixels[i] = Color_Reducer.hsv2rgb((h % 360 + 360) % 360, 0.4 + random.nextDouble() * 0.5,
+                        0.3 + random.nextDouble() * 0.7);
+            }
+        }
+        return pixels;
+    }
+}